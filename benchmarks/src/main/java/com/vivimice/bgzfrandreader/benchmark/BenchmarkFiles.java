@@ -0,0 +1,63 @@
+package com.vivimice.bgzfrandreader.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+import com.vivimice.bgzfrandreader.BgzfOutputStream;
+
+/**
+ * <p>Generates BGZF files used by benchmarks</p>
+ * 
+ * <p>Files contain tab separated, sequence like text records generated from a fixed seed, so the 
+ * same size always produces the same file. Generated files are kept in <code>java.io.tmpdir</code> 
+ * and reused by subsequent runs.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+final class BenchmarkFiles {
+    
+    private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+    
+    private BenchmarkFiles() {
+    }
+    
+    /**
+     * Gets a generated BGZF file of <code>sizeMiB</code> MiB uncompressed data
+     */
+    static synchronized File get(int sizeMiB) throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "bgzf-randreader-bench-" + sizeMiB + "m.bgz");
+        if (!file.isFile()) {
+            File tmp = new File(file.getPath() + ".tmp");
+            write(tmp, (long) sizeMiB * 1024 * 1024);
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Failed to create " + file);
+            }
+        }
+        return file;
+    }
+    
+    private static void write(File file, long inputLength) throws IOException {
+        Random random = new Random(inputLength);
+        byte[] record = new byte[0];
+        try (BgzfOutputStream out = new BgzfOutputStream(file, Deflater.DEFAULT_COMPRESSION, ForkJoinPool.commonPool())) {
+            for (long n = 0, written = 0; written < inputLength; n++, written += record.length) {
+                record = record(random, n);
+                out.write(record, 0, (int) Math.min(record.length, inputLength - written));
+            }
+        }
+    }
+    
+    private static byte[] record(Random random, long n) {
+        StringBuilder sb = new StringBuilder(96);
+        sb.append("chr").append(1 + n % 22).append('\t').append(n * 37).append('\t');
+        for (int i = 0; i < 50; i++) {
+            sb.append((char) BASES[random.nextInt(BASES.length)]);
+        }
+        sb.append('\t').append(random.nextInt(60)).append('\n');
+        return sb.toString().getBytes();
+    }
+    
+}
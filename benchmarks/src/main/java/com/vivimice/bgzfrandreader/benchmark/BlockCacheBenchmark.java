@@ -0,0 +1,98 @@
+package com.vivimice.bgzfrandreader.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vivimice.bgzfrandreader.LruBgzipBlockCache;
+import com.vivimice.bgzfrandreader.RandomAccessBgzFile;
+
+/**
+ * <p>Measures random reads through a shared {@link LruBgzipBlockCache} of various capacities. 
+ * Reads are skewed towards a hot region of the file, hits and misses of the cache are reported 
+ * as secondary results.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockCacheBenchmark {
+    
+    @Param({ "256" })
+    public int sizeMiB;
+    
+    @Param({ "0", "4", "32", "256" })
+    public int cacheMiB;
+    
+    /**
+     * Percentage of reads falling into the first 1/16 of the file
+     */
+    @Param({ "90" })
+    public int hotPercent;
+    
+    private RandomAccessBgzFile bgzFile;
+    private LruBgzipBlockCache cache;
+    private final Random random = new Random(0);
+    private final byte[] record = new byte[100];
+    
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class CacheCounters {
+        public long hits;
+        public long misses;
+    }
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = BenchmarkFiles.get(sizeMiB);
+        bgzFile = new RandomAccessBgzFile(file);
+        if (cacheMiB > 0) {
+            cache = new LruBgzipBlockCache(cacheMiB * 1024L * 1024L);
+            bgzFile.setBlockCache(cache);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        bgzFile.close();
+    }
+    
+    @Benchmark
+    public int randomRead(CacheCounters counters) throws IOException {
+        long range = random.nextInt(100) < hotPercent ? bgzFile.inputLength() / 16 : bgzFile.inputLength();
+        long pos = (long) (random.nextDouble() * (range - record.length));
+        
+        if (cache == null) {
+            bgzFile.seek(pos);
+            return bgzFile.read(record);
+        }
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        bgzFile.seek(pos);
+        int cb = bgzFile.read(record);
+        counters.hits += cache.getHitCount() - hits;
+        counters.misses += cache.getMissCount() - misses;
+        return cb;
+    }
+    
+}
@@ -0,0 +1,92 @@
+package com.vivimice.bgzfrandreader.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vivimice.bgzfrandreader.ConcurrentBgzFile;
+
+/**
+ * <p>Measures multi-threaded random reads of a shared {@link ConcurrentBgzFile}, and large range reads 
+ * decompressed sequentially versus in parallel. Number of threads can be changed with <code>-t</code> 
+ * option of JMH.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConcurrentBenchmark {
+    
+    @Param({ "256" })
+    public int sizeMiB;
+    
+    private ConcurrentBgzFile bgzFile;
+    
+    @State(Scope.Thread)
+    public static class RecordBuffer {
+        final byte[] record = new byte[100];
+    }
+    
+    @State(Scope.Thread)
+    public static class RangeBuffer {
+        final byte[] range = new byte[64 * 1024 * 1024];
+    }
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = BenchmarkFiles.get(sizeMiB);
+        bgzFile = new ConcurrentBgzFile(file);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        bgzFile.close();
+    }
+    
+    @Benchmark
+    @Threads(4)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int randomRead(RecordBuffer buffer) throws IOException {
+        long pos = ThreadLocalRandom.current().nextLong(bgzFile.inputLength() - buffer.record.length);
+        return bgzFile.read(pos, buffer.record, 0, buffer.record.length);
+    }
+    
+    /**
+     * Reads a 64 MiB range decompressed by calling thread
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int rangeRead(RangeBuffer buffer) throws IOException {
+        return bgzFile.read(0, buffer.range, 0, buffer.range.length);
+    }
+    
+    /**
+     * Reads a 64 MiB range decompressed in parallel by common fork join pool
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int parallelRangeRead(RangeBuffer buffer) throws IOException {
+        return bgzFile.read(0, buffer.range, 0, buffer.range.length, ForkJoinPool.commonPool());
+    }
+    
+}
@@ -0,0 +1,76 @@
+package com.vivimice.bgzfrandreader.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vivimice.bgzfrandreader.BgzipIndex;
+import com.vivimice.bgzfrandreader.RandomAccessBgzFile;
+
+/**
+ * <p>Measures building block index by walking through block headers sequentially or in parallel, 
+ * versus loading it from <code>.gzi</code> index file.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexBenchmark {
+    
+    @Param({ "16", "256" })
+    public int sizeMiB;
+    
+    private File file;
+    private File indexFile;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = BenchmarkFiles.get(sizeMiB);
+        indexFile = new File(file.getPath() + ".gzi");
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(file)) {
+            bgzFile.saveIndex(indexFile);
+        }
+    }
+    
+    @Benchmark
+    public BgzipIndex scan() throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            return BgzipIndex.scan(channel);
+        }
+    }
+    
+    @Benchmark
+    public BgzipIndex parallelScan() throws IOException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            return BgzipIndex.scan(channel, ForkJoinPool.commonPool());
+        }
+    }
+    
+    @Benchmark
+    public BgzipIndex loadGzi() throws IOException {
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.builder(file).indexFile(indexFile).build()) {
+            return bgzFile.getIndex();
+        }
+    }
+    
+}
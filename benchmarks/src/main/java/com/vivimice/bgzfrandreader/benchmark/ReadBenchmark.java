@@ -0,0 +1,101 @@
+package com.vivimice.bgzfrandreader.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vivimice.bgzfrandreader.BgzipDecompressor;
+import com.vivimice.bgzfrandreader.BgzipIndex;
+import com.vivimice.bgzfrandreader.RandomAccessBgzFile;
+
+/**
+ * <p>Measures random small reads and full sequential scans of {@link RandomAccessBgzFile}.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadBenchmark {
+    
+    @Param({ "16", "256" })
+    public int sizeMiB;
+    
+    @Param({ "false", "true" })
+    public boolean memoryMapped;
+    
+    @Param({ "0", "8" })
+    public int readahead;
+    
+    @Param({ "ZLIB", "PURE_JAVA" })
+    public String decompressor;
+    
+    private RandomAccessBgzFile bgzFile;
+    private final Random random = new Random(0);
+    private final byte[] record = new byte[100];
+    private final byte[] chunk = new byte[65536];
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File file = BenchmarkFiles.get(sizeMiB);
+        BgzipIndex index;
+        try (RandomAccessBgzFile indexed = new RandomAccessBgzFile(file)) {
+            index = indexed.getIndex();
+        }
+        bgzFile = RandomAccessBgzFile.builder(file)
+                .index(index)
+                .memoryMapped(memoryMapped)
+                .readahead(readahead)
+                .decompressor("PURE_JAVA".equals(decompressor) ? BgzipDecompressor.PURE_JAVA : BgzipDecompressor.ZLIB)
+                .build();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        bgzFile.close();
+    }
+    
+    /**
+     * Reads 100 bytes at random position, each read decompresses a block at most
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int randomRead() throws IOException {
+        long pos = (long) (random.nextDouble() * (bgzFile.inputLength() - record.length));
+        bgzFile.seek(pos);
+        return bgzFile.read(record);
+    }
+    
+    /**
+     * Reads the whole file from start to end in 64 KiB chunks
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long sequentialScan() throws IOException {
+        bgzFile.seek(0);
+        long total = 0;
+        int cb;
+        while ((cb = bgzFile.read(chunk)) > 0) {
+            total += cb;
+        }
+        return total;
+    }
+    
+}
@@ -0,0 +1,43 @@
+package com.vivimice.bgzfrandreader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A block is read from file and decompressed
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+@Name("com.vivimice.bgzfrandreader.BlockDecompressed")
+@Label("BGZF Block Decompressed")
+@Category("BGZF")
+@Description("A block is read from file and decompressed")
+@StackTrace(false)
+final class BlockDecompressedEvent extends Event {
+    
+    @Label("Block Offset")
+    long blockOffset;
+    
+    @Label("Block Size")
+    @DataAmount
+    int blockSize;
+    
+    @Label("Input Length")
+    @DataAmount
+    int inputLength;
+    
+    @Label("Read Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long readTime;
+    
+    @Label("Inflate Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long inflateTime;
+    
+}
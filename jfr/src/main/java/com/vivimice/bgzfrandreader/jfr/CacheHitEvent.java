@@ -0,0 +1,30 @@
+package com.vivimice.bgzfrandreader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Uncompressed data is served from cache without decompression
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+@Name("com.vivimice.bgzfrandreader.CacheHit")
+@Label("BGZF Cache Hit")
+@Category("BGZF")
+@Description("Uncompressed data is served from local, readahead or shared block cache")
+@StackTrace(false)
+final class CacheHitEvent extends Event {
+    
+    @Label("Source")
+    String source;
+    
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+    
+}
@@ -0,0 +1,28 @@
+package com.vivimice.bgzfrandreader.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Block index is built or loaded while opening a file
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+@Name("com.vivimice.bgzfrandreader.IndexBuilt")
+@Label("BGZF Index Built")
+@Category("BGZF")
+@Description("Block index is built by walking through block headers, or loaded from .gzi index")
+final class IndexBuiltEvent extends Event {
+    
+    @Label("Block Count")
+    int blockCount;
+    
+    @Label("Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long time;
+    
+}
@@ -0,0 +1,61 @@
+package com.vivimice.bgzfrandreader.jfr;
+
+import com.vivimice.bgzfrandreader.BgzipMetricsListener;
+
+/**
+ * <p>Emits block level metrics of readers as JDK Flight Recorder events</p>
+ * 
+ * <p>Events are created only if enabled in the running recording, so the listener costs little more 
+ * than the measurements taken by readers when no recording is active. This class is thread safe, 
+ * a single instance can be shared by all readers.</p>
+ * 
+ * <p>Example:</p>
+ * <pre>
+ * RandomAccessBgzFile file = RandomAccessBgzFile.builder(new File("test.gz"))
+ *         .metricsListener(JfrMetricsListener.INSTANCE)
+ *         .build();
+ * </pre>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+public final class JfrMetricsListener implements BgzipMetricsListener {
+    
+    /**
+     * Shared instance
+     */
+    public static final JfrMetricsListener INSTANCE = new JfrMetricsListener();
+    
+    @Override
+    public void indexBuilt(int blockCount, long nanos) {
+        IndexBuiltEvent event = new IndexBuiltEvent();
+        if (event.isEnabled()) {
+            event.blockCount = blockCount;
+            event.time = nanos;
+            event.commit();
+        }
+    }
+    
+    @Override
+    public void blockDecompressed(long blockOffset, int blockSize, int inputLength, long readNanos, long inflateNanos) {
+        BlockDecompressedEvent event = new BlockDecompressedEvent();
+        if (event.isEnabled()) {
+            event.blockOffset = blockOffset;
+            event.blockSize = blockSize;
+            event.inputLength = inputLength;
+            event.readTime = readNanos;
+            event.inflateTime = inflateNanos;
+            event.commit();
+        }
+    }
+    
+    @Override
+    public void cacheHit(CacheSource source, int bytes) {
+        CacheHitEvent event = new CacheHitEvent();
+        if (event.isEnabled()) {
+            event.source = source.name();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+    
+}
@@ -0,0 +1,220 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>An asynchronous read of uncompressed data in progress</p>
+ * 
+ * <p>Blocks covering the read are split into runs of contiguous blocks, each no larger than the maximum
+ * size of coalesced reads, and all runs are read by {@link AsynchronousFileChannel} at once. Each run is
+ * decompressed by the thread completing its I/O, straight into its own part of the result array. The
+ * handler is completed after the last run is decompressed, or failed on the first failure.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see ConcurrentBgzFile#readAsync(long, int, Object, CompletionHandler)
+ */
+class AsyncRead<A> {
+    
+    private final AsynchronousFileChannel channel;
+    private final BgzipIndex index;
+    private final long basePosition;
+    private final BgzipDecompressor decompressor;
+    private final BlockVerifier verifier;
+    private final BgzipMetricsListener metricsListener;
+    private final long pos;
+    private final byte[] result;
+    private final A attachment;
+    private final CompletionHandler<ByteBuffer, ? super A> handler;
+    
+    private final AtomicInteger pendingRuns = new AtomicInteger();
+    private final AtomicBoolean failed = new AtomicBoolean(false);
+    
+    AsyncRead(AsynchronousFileChannel channel, BgzipIndex index, long basePosition, BgzipDecompressor decompressor,
+            BlockVerifier verifier, BgzipMetricsListener metricsListener, long pos, int len,
+            A attachment, CompletionHandler<ByteBuffer, ? super A> handler) {
+        this.channel = channel;
+        this.index = index;
+        this.basePosition = basePosition;
+        this.decompressor = decompressor;
+        this.verifier = verifier;
+        this.metricsListener = metricsListener;
+        this.pos = pos;
+        this.result = new byte[len];
+        this.attachment = attachment;
+        this.handler = handler;
+    }
+    
+    /**
+     * Issues reads of all runs, <code>[pos, pos + len)</code> must be within uncompressed data and not empty
+     */
+    void start(int maxCoalescedRead) {
+        long end = pos + result.length;
+        int last = index.indexOf(end - 1);
+        Run head = null;
+        Run tail = null;
+        int runs = 0;
+        for (int i = index.indexOf(pos); i <= last; ) {
+            long runEnd = index.getBlockOffset(i) + index.coalescedSize(i, end, maxCoalescedRead);
+            int j = i;
+            while (j < last && index.getBlockOffset(j + 1) < runEnd) {
+                j++;
+            }
+            for (int k = i; k <= j; k++) {
+                if (index.getBlockSize(k) > BgzipBlock.MAX_BLOCK_SIZE || index.getInputLength(k) > BgzipBlock.MAX_BLOCK_SIZE) {
+                    fail(new MalformedBgzipDataException("Wrong compressed data block: block too large"));
+                    return;
+                }
+            }
+            
+            Run run = new Run(i, j, (int) (runEnd - index.getBlockOffset(i)));
+            if (tail != null) {
+                tail.next = run;
+            } else {
+                head = run;
+            }
+            tail = run;
+            runs++;
+            i = j + 1;
+        }
+        
+        pendingRuns.set(runs);
+        for (Run run = head; run != null && !failed.get(); run = run.next) {
+            run.read();
+        }
+    }
+    
+    private void fail(Throwable e) {
+        if (failed.compareAndSet(false, true)) {
+            handler.failed(e, attachment);
+        }
+    }
+    
+    /**
+     * Contiguous blocks read at once
+     */
+    private class Run implements CompletionHandler<Integer, Void> {
+        final int firstBlock;
+        final int lastBlock;
+        final ByteBuffer buffer;
+        long startNanos;
+        Run next = null;
+        
+        Run(int firstBlock, int lastBlock, int size) {
+            this.firstBlock = firstBlock;
+            this.lastBlock = lastBlock;
+            this.buffer = ByteBuffer.allocate(size);
+        }
+        
+        void read() {
+            if (metricsListener != null && startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+            try {
+                channel.read(buffer, basePosition + index.getBlockOffset(firstBlock) + buffer.position(), null, this);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+        
+        @Override
+        public void completed(Integer n, Void v) {
+            if (failed.get()) {
+                return;
+            }
+            if (n < 0) {
+                fail(new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to read"));
+                return;
+            }
+            if (buffer.hasRemaining()) {
+                read();
+                return;
+            }
+            
+            try {
+                decompress();
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if (pendingRuns.decrementAndGet() == 0 && !failed.get()) {
+                handler.completed(ByteBuffer.wrap(result), attachment);
+            }
+        }
+        
+        @Override
+        public void failed(Throwable e, Void v) {
+            fail(e);
+        }
+        
+        private void decompress() throws MalformedBgzipDataException {
+            long readNanos = metricsListener != null ? System.nanoTime() - startNanos : 0;
+            long end = pos + result.length;
+            byte[] compressed = buffer.array();
+            byte[] scratch = null;
+            for (int i = firstBlock; i <= lastBlock; i++) {
+                int blockOff = (int) (index.getBlockOffset(i) - index.getBlockOffset(firstBlock));
+                int blockSize = index.getBlockSize(i);
+                long inputOffset = index.getInputOffset(i);
+                int inputLength = index.getInputLength(i);
+                long copyStart = Math.max(pos, inputOffset);
+                long copyEnd = Math.min(end, inputOffset + inputLength);
+                
+                // Fully covered blocks are inflated straight into result, edge blocks are copied partially
+                long inflateNanos = metricsListener != null ? System.nanoTime() : 0;
+                boolean direct = copyStart == inputOffset && copyEnd == inputOffset + inputLength;
+                if (!direct && scratch == null) {
+                    scratch = new byte[BgzipBlock.MAX_BLOCK_SIZE];
+                }
+                byte[] target = direct ? result : scratch;
+                int targetOff = direct ? (int) (inputOffset - pos) : 0;
+                BgzipBlock.inflate(decompressor, compressed, blockOff, blockSize, target, targetOff, inputLength);
+                if (verifier != null) {
+                    verifier.verify(i, compressed, blockOff, blockSize, target, targetOff, inputLength);
+                }
+                if (!direct) {
+                    System.arraycopy(scratch, (int) (copyStart - inputOffset), result, (int) (copyStart - pos), (int) (copyEnd - copyStart));
+                }
+                
+                if (metricsListener != null) {
+                    // time spent reading the run is accounted to its first block
+                    metricsListener.blockDecompressed(basePosition + index.getBlockOffset(i), blockSize, inputLength,
+                            i == firstBlock ? readNanos : 0, System.nanoTime() - inflateNanos);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Future completed by an asynchronous read
+     */
+    static class ReadFuture extends FutureTask<ByteBuffer> implements CompletionHandler<ByteBuffer, Object> {
+        
+        ReadFuture() {
+            super(new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() throws Exception {
+                    // never run, completed by the read
+                    throw new IllegalStateException();
+                }
+            });
+        }
+        
+        @Override
+        public void completed(ByteBuffer result, Object attachment) {
+            set(result);
+        }
+        
+        @Override
+        public void failed(Throwable e, Object attachment) {
+            setException(e);
+        }
+    }
+    
+}
@@ -0,0 +1,135 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * <p>Read-only {@link SeekableByteChannel} over uncompressed data of a {@link RandomAccessBgzFile}</p>
+ * 
+ * <p>Position and size of this channel are relative to uncompressed data, reads are served by
+ * {@link RandomAccessBgzFile#read(ByteBuffer)} through the block index of the file. Any attempt to
+ * write or truncate throws {@link NonWritableChannelException}.</p>
+ * 
+ * <p>Closing this channel closes the underlying {@link RandomAccessBgzFile}. Like
+ * {@link RandomAccessBgzFile}, this class is not thread safe.</p>
+ * 
+ * <p>Example:</p>
+ * <pre>
+ * try (SeekableByteChannel channel = new BgzSeekableByteChannel(new RandomAccessBgzFile(file))) {
+ *     channel.position(100000);
+ *     channel.read(buffer);
+ * }
+ * </pre>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+public class BgzSeekableByteChannel implements SeekableByteChannel {
+    
+    private final RandomAccessBgzFile file;
+    private long position;
+    private boolean open = true;
+    
+    /**
+     * <p>Creates a channel reading uncompressed data of <code>file</code>, starting from
+     * its current position.</p>
+     * 
+     * @param file
+     * @throws NullPointerException If <code>file</code> is <code>null</code>
+     */
+    public BgzSeekableByteChannel(RandomAccessBgzFile file) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        this.file = file;
+        this.position = file.getPosition();
+    }
+    
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            file.close();
+        }
+    }
+    
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position != file.getPosition()) {
+            // sequential reads don't need to check length, which may scan a lazily built index
+            if (position >= file.inputLength()) {
+                return dst.hasRemaining() ? -1 : 0;
+            }
+            file.seek(position);
+        }
+        int cb = file.read(dst);
+        position = file.getPosition();
+        return cb;
+    }
+    
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        throw new NonWritableChannelException();
+    }
+    
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+    
+    /**
+     * <p>Sets position of this channel, relative to uncompressed data. Setting position
+     * beyond uncompressed data length is legal, but subsequent reads return end of stream.</p>
+     * 
+     * @param newPosition
+     * @return This channel
+     * @throws IOException If I/O error occurs
+     * @throws ClosedChannelException If this channel is closed
+     * @throws IllegalArgumentException If <code>newPosition</code> is negative
+     */
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException(String.format("Negative position %d", newPosition));
+        }
+        position = newPosition;
+        return this;
+    }
+    
+    /**
+     * <p>Gets uncompressed data length</p>
+     * 
+     * @return Total uncompressed data length
+     * @throws IOException If I/O error occurs
+     * @throws ClosedChannelException If this channel is closed
+     */
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return file.inputLength();
+    }
+    
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        ensureOpen();
+        throw new NonWritableChannelException();
+    }
+    
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+    
+}
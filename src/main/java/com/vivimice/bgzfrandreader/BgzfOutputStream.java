@@ -0,0 +1,432 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * <p>An output stream compressing data in BGZF format</p>
+ * 
+ * <p>Data is split into blocks of up to 65280 bytes, as <code>bgzip</code> does. Each block is a
+ * standalone gzip member with BC extra subfield holding the block size, followed by CRC32 and ISIZE.
+ * Blocks which can't be compressed into 64 KiB are stored uncompressed. An EOF marker block is appended
+ * by {@link #finish()} or {@link #close()}.</p>
+ * 
+ * <p>If an {@link Executor} is given, blocks are compressed in parallel by tasks submitted to it, and
+ * written to underlying stream in order. Otherwise blocks are compressed by the writing thread.</p>
+ * 
+ * <p>Block index of the written data is built as blocks are written, so that the file can be opened
+ * by {@link RandomAccessBgzFile.Builder#index(BgzipIndex)} or {@link ConcurrentBgzFile.Builder#index(BgzipIndex)}
+ * without walking through block headers, or saved as a samtools compatible <code>.gzi</code> index by
+ * {@link #saveIndex(File)}.</p>
+ * 
+ * <p>Note: Make sure {@link #close()} is called after use, otherwise off-heap memory held by
+ * {@link Deflater} will leak. This class is not thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+public class BgzfOutputStream extends OutputStream {
+    
+    /**
+     * Maximum uncompressed data length of each block, same as <code>bgzip</code>
+     */
+    static final int BLOCK_INPUT_SIZE = 0xff00;
+    
+    private static final int HEADER_SIZE = 18;
+    private static final int TRAILER_SIZE = 8;    // sizeof(CRC32) + sizeof(ISIZE)
+    
+    /**
+     * Maximum number of blocks being compressed in parallel, per processor
+     */
+    private static final int PENDING_BLOCKS_PER_PROCESSOR = 4;
+    
+    private final OutputStream out;
+    private final int level;
+    private final Executor executor;
+    private final int maxPendingBlocks;
+    private final Queue<Compressor> compressors = new ConcurrentLinkedQueue<>();
+    private final Deque<PendingBlock> pending = new ArrayDeque<>();
+    private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+    private final BgzipIndex.Builder indexBuilder = BgzipIndex.builder();
+    
+    private byte[] input;
+    private int inputLength = 0;
+    private byte[] block = null;
+    private long blockOffset = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    
+    /**
+     * <p>Constructs a BgzfOutputStream writing to <code>out</code> with default compression level,
+     * compressing blocks by the writing thread.</p>
+     * 
+     * @param out
+     * @throws NullPointerException If <code>out</code> is <code>null</code>
+     */
+    public BgzfOutputStream(OutputStream out) {
+        this(out, Deflater.DEFAULT_COMPRESSION, null);
+    }
+    
+    /**
+     * <p>Constructs a BgzfOutputStream writing to <code>out</code>.</p>
+     * 
+     * @param out
+     * @param level Compression level, 0 to 9, or -1 for default level
+     * @param executor Executor compressing blocks in parallel, or <code>null</code> to compress
+     *        blocks by the writing thread
+     * @throws NullPointerException If <code>out</code> is <code>null</code>
+     * @throws IllegalArgumentException If <code>level</code> is invalid
+     */
+    public BgzfOutputStream(OutputStream out, int level, Executor executor) {
+        if (out == null) {
+            throw new NullPointerException();
+        }
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException(String.format("Invalid compression level %d", level));
+        }
+        this.out = out;
+        this.level = level;
+        this.executor = executor;
+        this.maxPendingBlocks = PENDING_BLOCKS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+        this.input = new byte[BgzipBlock.MAX_BLOCK_SIZE];
+    }
+    
+    /**
+     * <p>Constructs a BgzfOutputStream writing to <code>file</code>.</p>
+     * 
+     * @param file
+     * @param level Compression level, 0 to 9, or -1 for default level
+     * @param executor Executor compressing blocks in parallel, or <code>null</code> to compress
+     *        blocks by the writing thread
+     * @throws FileNotFoundException If <code>file</code> can't be opened for writing
+     * @throws NullPointerException If <code>file</code> is <code>null</code>
+     * @throws IllegalArgumentException If <code>level</code> is invalid
+     */
+    public BgzfOutputStream(File file, int level, Executor executor) throws FileNotFoundException {
+        this(new BufferedOutputStream(new FileOutputStream(file), BgzipBlock.MAX_BLOCK_SIZE), level, executor);
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        input[inputLength++] = (byte) b;
+        if (inputLength == BLOCK_INPUT_SIZE) {
+            submitBlock();
+        }
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        while (len > 0) {
+            int copyLength = Math.min(len, BLOCK_INPUT_SIZE - inputLength);
+            System.arraycopy(b, off, input, inputLength, copyLength);
+            inputLength += copyLength;
+            off += copyLength;
+            len -= copyLength;
+            if (inputLength == BLOCK_INPUT_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+    
+    /**
+     * <p>Compresses buffered data into a block, writes all pending blocks and flushes
+     * underlying stream.</p>
+     * 
+     * <p>Note: Each flush ends current block, so frequent flushing produces small blocks and
+     * hurts compression ratio.</p>
+     * 
+     * @throws IOException If I/O error occurs
+     */
+    @Override
+    public void flush() throws IOException {
+        if (finished) {
+            return;
+        }
+        ensureOpen();
+        submitBlock();
+        while (!pending.isEmpty()) {
+            writePending();
+        }
+        out.flush();
+    }
+    
+    /**
+     * <p>Writes all remaining data and the EOF marker block, without closing underlying stream.
+     * No more data can be written after this method is called.</p>
+     * 
+     * @throws IOException If I/O error occurs
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        flush();
+        out.write(BgzipIndex.EOF_MARKER);
+        blockOffset += BgzipIndex.EOF_MARKER.length;
+        out.flush();
+        finished = true;
+    }
+    
+    /**
+     * <p>Finishes writing, closes underlying stream and releases compressors.</p>
+     * 
+     * @throws IOException If I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            finish();
+        } finally {
+            closed = true;
+            try {
+                // wait for tasks still using compressors, ignoring their failures
+                while (!pending.isEmpty()) {
+                    awaitQuietly(pending.poll().task);
+                }
+            } finally {
+                Compressor compressor;
+                while ((compressor = compressors.poll()) != null) {
+                    compressor.deflater.end();
+                }
+                out.close();
+            }
+        }
+    }
+    
+    /**
+     * <p>Gets block index of data written to underlying stream so far. Data still buffered or
+     * being compressed is not included until {@link #flush()}, {@link #finish()} or {@link #close()}
+     * is called.</p>
+     * 
+     * @return Block index
+     */
+    public BgzipIndex getIndex() {
+        return indexBuilder.build();
+    }
+    
+    /**
+     * <p>Saves block index of data written so far to <code>indexFile</code> in samtools
+     * compatible <code>.gzi</code> format. The index is written to a temporary file first, then
+     * renamed to <code>indexFile</code>, so readers never see a partially written index.</p>
+     * 
+     * @param indexFile
+     * @throws IOException If I/O error occurs
+     * @throws NullPointerException If <code>indexFile</code> is <code>null</code>
+     * @see #getIndex()
+     */
+    public void saveIndex(File indexFile) throws IOException {
+        BgzipIndex.saveGzi(getIndex(), indexFile);
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            // close() may have failed to finish, compressors are released anyway
+            throw new IOException("Stream closed");
+        }
+        if (finished) {
+            throw new IOException("Stream finished");
+        }
+    }
+    
+    /**
+     * Compresses buffered data as a block, either by calling thread or by executor
+     */
+    private void submitBlock() throws IOException {
+        if (inputLength == 0) {
+            return;
+        }
+        
+        if (executor == null) {
+            if (block == null) {
+                block = new byte[BgzipBlock.MAX_BLOCK_SIZE];
+            }
+            int blockSize = compress(input, inputLength, block);
+            writeBlock(block, blockSize, inputLength);
+        } else {
+            final byte[] input = this.input;
+            final byte[] output = freeBuffers.isEmpty() ? new byte[BgzipBlock.MAX_BLOCK_SIZE] : freeBuffers.pop();
+            final int inputLength = this.inputLength;
+            FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return compress(input, inputLength, output);
+                }
+            });
+            pending.add(new PendingBlock(task, input, output, inputLength));
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+            this.input = freeBuffers.isEmpty() ? new byte[BgzipBlock.MAX_BLOCK_SIZE] : freeBuffers.pop();
+            
+            // write blocks already compressed, or wait for the eldest if there are too many pending
+            while (!pending.isEmpty() && (pending.size() > maxPendingBlocks || pending.peek().task.isDone())) {
+                writePending();
+            }
+        }
+        inputLength = 0;
+    }
+    
+    private void writePending() throws IOException {
+        PendingBlock pendingBlock = pending.poll();
+        int blockSize;
+        try {
+            blockSize = await(pendingBlock.task);
+        } catch (IOException | RuntimeException e) {
+            awaitQuietly(pendingBlock.task);
+            throw e;
+        }
+        writeBlock(pendingBlock.output, blockSize, pendingBlock.inputLength);
+        freeBuffers.push(pendingBlock.input);
+        freeBuffers.push(pendingBlock.output);
+    }
+    
+    private void writeBlock(byte[] block, int blockSize, int inputLength) throws IOException {
+        out.write(block, 0, blockSize);
+        indexBuilder.add(blockOffset, blockSize, inputLength);
+        blockOffset += blockSize;
+    }
+    
+    /**
+     * Compresses <code>input[0, length)</code> into a whole block stored in <code>block</code>,
+     * returns size of the block. May be called by multiple threads.
+     */
+    private int compress(byte[] input, int length, byte[] block) {
+        Compressor compressor = compressors.poll();
+        if (compressor == null) {
+            compressor = new Compressor(level);
+        }
+        
+        try {
+            Deflater deflater = compressor.deflater;
+            deflater.setInput(input, 0, length);
+            deflater.finish();
+            int dataLength = deflater.deflate(block, HEADER_SIZE, block.length - HEADER_SIZE - TRAILER_SIZE);
+            if (!deflater.finished()) {
+                // Incompressible data, store it in a single non-compressed deflate block:
+                // BFINAL = 1, BTYPE = 00, LEN, NLEN
+                block[HEADER_SIZE] = 0x01;
+                block[HEADER_SIZE + 1] = (byte) length;
+                block[HEADER_SIZE + 2] = (byte) (length >>> 8);
+                block[HEADER_SIZE + 3] = (byte) ~length;
+                block[HEADER_SIZE + 4] = (byte) (~length >>> 8);
+                System.arraycopy(input, 0, block, HEADER_SIZE + 5, length);
+                dataLength = 5 + length;
+            }
+            
+            CRC32 crc = compressor.crc;
+            crc.update(input, 0, length);
+            
+            int blockSize = HEADER_SIZE + dataLength + TRAILER_SIZE;
+            ByteBuffer bb = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+            // ID1, ID2, CM, FLG
+            bb.putInt(0, 0x04088b1f);
+            // MTIME
+            bb.putInt(4, 0);
+            // XFL, OS = unknown
+            bb.put(8, (byte) 0);
+            bb.put(9, (byte) 0xff);
+            // XLEN, SI1 = 'B', SI2 = 'C', SLEN, BSIZE
+            bb.putShort(10, (short) 6);
+            bb.putShort(12, (short) 0x4342);
+            bb.putShort(14, (short) 2);
+            bb.putShort(16, (short) (blockSize - 1));
+            // CRC32, ISIZE
+            bb.putInt(blockSize - 8, (int) crc.getValue());
+            bb.putInt(blockSize - 4, length);
+            return blockSize;
+        } finally {
+            compressor.deflater.reset();
+            compressor.crc.reset();
+            compressors.offer(compressor);
+        }
+    }
+    
+    private static int await(FutureTask<Integer> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+    
+    private static void awaitQuietly(FutureTask<Integer> task) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                task.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static class Compressor {
+        final Deflater deflater;
+        final CRC32 crc = new CRC32();
+        
+        Compressor(int level) {
+            this.deflater = new Deflater(level, true);
+        }
+    }
+    
+    private static class PendingBlock {
+        final FutureTask<Integer> task;
+        final byte[] input;
+        final byte[] output;
+        final int inputLength;
+        
+        PendingBlock(FutureTask<Integer> task, byte[] input, byte[] output, int inputLength) {
+            this.task = task;
+            this.input = input;
+            this.output = output;
+            this.inputLength = inputLength;
+        }
+    }
+    
+}
@@ -6,18 +6,43 @@ public final class BgzipBlock implements Serializable {
 
     private static final long serialVersionUID = 3728331604559369930L;
     
+    /**
+     * Maximum size of BGZF block, which is also the maximum uncompressed data length of a block
+     */
+    static final int MAX_BLOCK_SIZE = 65536;
+    
+    /**
+     * Default maximum size of a single read of contiguous compressed blocks
+     */
+    static final int DEFAULT_MAX_COALESCED_READ = 1 << 20;
+    
+    private final long blockOffset;
     private final long dataOffset;
     private final int dataLength;
     private final int inputLength;
     private final int blockSize;
     
+    /**
+     * @deprecated Block offset is unknown (-1) for blocks constructed this way, 
+     *             use {@link #BgzipBlock(long, int, long, int, int)} or {@link #builder()} instead.
+     */
+    @Deprecated
     public BgzipBlock(int blockSize, long dataOffset, int dataLength, int inputLength) {
+        this(-1, blockSize, dataOffset, dataLength, inputLength);
+    }
+    
+    public BgzipBlock(long blockOffset, int blockSize, long dataOffset, int dataLength, int inputLength) {
+        this.blockOffset = blockOffset;
         this.dataOffset = dataOffset;
         this.dataLength = dataLength;
         this.inputLength = inputLength;
         this.blockSize = blockSize;
     }
 
+    public long getBlockOffset() {
+        return blockOffset;
+    }
+
     public long getDataOffset() {
         return dataOffset;
     }
@@ -39,11 +64,17 @@ public final class BgzipBlock implements Serializable {
     }
     
     public static class Builder {
+        private long blockOffset;
         private long dataOffset;
         private int dataLength;
         private int inputLength;
         private int blockSize;
 
+        public Builder blockOffset(long blockOffset) {
+            this.blockOffset = blockOffset;
+            return this;
+        }
+
         public Builder dataOffset(long dataOffset) {
             this.dataOffset = dataOffset;
             return this;
@@ -65,10 +96,36 @@ public final class BgzipBlock implements Serializable {
         }
         
         public BgzipBlock build() {
-            return new BgzipBlock(blockSize, dataOffset, dataLength, inputLength);
+            return new BgzipBlock(blockOffset, blockSize, dataOffset, dataLength, inputLength);
         }
 
     }
     
+    /**
+     * Decompresses a whole block (including header and trailer) stored in <code>block[blockOff, blockOff + blockSize)</code>
+     * into <code>dst[dstOff, dstOff + inputLength)</code> with <code>decompressor</code>
+     */
+    static void inflate(BgzipDecompressor decompressor, byte[] block, int blockOff, int blockSize, 
+            byte[] dst, int dstOff, int inputLength) throws MalformedBgzipDataException {
+        int dataStart = dataStart(block, blockOff, blockSize);
+        // sizeof(CRC32) + sizeof(ISIZE) = 8
+        decompressor.decompress(block, blockOff + dataStart, blockSize - dataStart - 8, dst, dstOff, inputLength);
+    }
+    
+    /**
+     * Validates header of block data, returns offset of compressed data relative to block start
+     */
+    private static int dataStart(byte[] block, int off, int length) throws MalformedBgzipDataException {
+        if (length < 12 || block[off] != 0x1f || block[off + 1] != (byte) 0x8b
+                || block[off + 2] != 0x08 || block[off + 3] != 0x04) {
+            throw new MalformedBgzipDataException("Malformed block header");
+        }
+        int xlen = (block[off + 10] & 0xff) | ((block[off + 11] & 0xff) << 8);
+        if (12 + xlen + 8 > length) {
+            throw new MalformedBgzipDataException("Bad extra field block");
+        }
+        return 12 + xlen;
+    }
+    
     
 }
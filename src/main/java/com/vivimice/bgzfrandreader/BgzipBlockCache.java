@@ -0,0 +1,37 @@
+package com.vivimice.bgzfrandreader;
+
+/**
+ * <p>Cache of uncompressed BGZF block data</p>
+ * 
+ * <p>A cache can be shared by multiple readers, so that hot blocks are decompressed only once. 
+ * Blocks are identified by an opaque file key and the block's offset in that file. Implementations 
+ * must be thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see LruBgzipBlockCache
+ * @see RandomAccessBgzFile#setBlockCache(BgzipBlockCache)
+ * @see ConcurrentBgzFile#setBlockCache(BgzipBlockCache)
+ */
+public interface BgzipBlockCache {
+    
+    /**
+     * <p>Gets uncompressed data of a block</p>
+     * 
+     * @param fileKey Identity of the file
+     * @param blockOffset Offset of the block in the file
+     * @return Uncompressed data of the block, or <code>null</code> if not cached. 
+     *         Callers must not modify the returned array.
+     */
+    byte[] get(Object fileKey, long blockOffset);
+    
+    /**
+     * <p>Puts uncompressed data of a block into cache</p>
+     * 
+     * @param fileKey Identity of the file
+     * @param blockOffset Offset of the block in the file
+     * @param data Uncompressed data of the block, whose length equals to the block's input length. 
+     *        Callers must not modify the array after putting it into cache.
+     */
+    void put(Object fileKey, long blockOffset, byte[] data);
+    
+}
@@ -0,0 +1,47 @@
+package com.vivimice.bgzfrandreader;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Decompresses raw DEFLATE data of whole BGZF blocks with zlib</p>
+ * 
+ * <p>Instances of this class hold an {@link Inflater}, thus {@link #end()} must be called after use.
+ * This class is not thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see InflaterPool
+ */
+class BgzipBlockInflater {
+    
+    private final Inflater inflater = new Inflater(true);
+    
+    /**
+     * Inflates raw DEFLATE data <code>src[srcOff, srcOff + srcLen)</code> into
+     * <code>dst[dstOff, dstOff + dstLen)</code>
+     */
+    void inflate(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws MalformedBgzipDataException {
+        inflater.setInput(src, srcOff, srcLen);
+        try {
+            int ret = inflater.inflate(dst, dstOff, dstLen);
+            if (ret == 0) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to decompress");
+            } else if (ret != dstLen) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: not fully uncompressed");
+            }
+        } catch (DataFormatException e) {
+            throw new MalformedBgzipDataException("Wrong compressed data block: invalid zlib format", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+    
+    /**
+     * Releases native resources of underlying {@link Inflater}
+     */
+    void end() {
+        inflater.end();
+    }
+    
+}
@@ -0,0 +1,207 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * <p>Sequential scanner of BGZF block headers</p>
+ * 
+ * <p>Compressed data is read in large chunks, block headers and ISIZE fields are parsed out of
+ * the chunk in memory. So building index is a sequential pass throughput bounded by the storage,
+ * instead of several tiny reads and seeks per block.</p>
+ * 
+ * <p>{@link FileChannel} is read by positional reads, so that multiple scanners can read different 
+ * parts of the same channel concurrently.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+class BgzipBlockScanner {
+    
+    /**
+     * Default size of chunks read from channel
+     */
+    static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+    
+    private final SeekableByteChannel channel;
+    private final long basePosition;
+    private final ByteBuffer buffer;
+    
+    /**
+     * Offset of buffer's first byte, relative to base position
+     */
+    private long bufferOffset;
+    
+    /**
+     * Offset of next block, relative to base position
+     */
+    private long blockOffset;
+    
+    /**
+     * Constructs a scanner reading blocks from <code>basePosition</code> of <code>channel</code>
+     */
+    BgzipBlockScanner(SeekableByteChannel channel, long basePosition, int bufferSize) throws IOException {
+        // Chunk must be able to hold a whole block, but not larger than the file itself
+        long remaining = Math.max(channel.size() - basePosition, 0);
+        int capacity = (int) Math.min(Math.max(bufferSize, BgzipBlock.MAX_BLOCK_SIZE), remaining);
+        
+        this.channel = channel;
+        this.basePosition = basePosition;
+        this.buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) buffer).limit(0);
+        this.bufferOffset = 0;
+        this.blockOffset = 0;
+    }
+    
+    /**
+     * Offset of the block to be read by {@link #next()}, relative to base position
+     */
+    long position() {
+        return blockOffset;
+    }
+    
+    /**
+     * Reads next block
+     * 
+     * @return Next block, or <code>null</code> if EOF marker block is reached
+     * @throws IOException If I/O error occurs
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    BgzipBlock next() throws IOException, MalformedBgzipDataException {
+        BgzipBlock.Builder builder = BgzipBlock.builder();
+        builder.blockOffset(blockOffset);
+        
+        // Headers
+        if (!ensure(12)) {
+            throw new MalformedBgzipDataException("Header is broken");
+        }
+        int p = (int) (blockOffset - bufferOffset);
+        
+        // ID1 = 0x1f
+        // ID2 = 0x8b
+        // CM = 0x08
+        // FLG = 0x04
+        if (buffer.getInt(p) != 0x04088b1f) {
+            throw new MalformedBgzipDataException("Malformed block header");
+        }
+        
+        // sizeof(MTIME) = 4
+        // sizeof(XFL) = 1
+        // sizeof(OS) = 1
+        // XLEN
+        final int xlen = buffer.getShort(p + 10) & 0xffff;
+        
+        // Extra Subfield
+        if (!ensure(12 + xlen)) {
+            throw new MalformedBgzipDataException("Bad extra field block");
+        }
+        p = (int) (blockOffset - bufferOffset) + 12;
+        
+        int bSize = -1;
+        int remainXlen = xlen;
+        while (remainXlen > 0) {
+            if (remainXlen < 4) {
+                throw new MalformedBgzipDataException("Bad extra field block");
+            }
+            // SI1: uint8
+            // SI2: uint8
+            int si = buffer.getShort(p) & 0xffff;
+            // SLEN: uint16
+            int slen = buffer.getShort(p + 2) & 0xffff;
+            p += 4;
+            
+            remainXlen -= 4 + slen;
+            if (remainXlen < 0) {
+                throw new MalformedBgzipDataException("Bad extra field block");
+            }
+            
+            if (si == 0x4342) {
+                // BGZF subfield
+                if (slen != 2) {
+                    throw new MalformedBgzipDataException("Bad subfield length");
+                }
+                // BSIZE
+                if (bSize == -1) {
+                    bSize = buffer.getShort(p) & 0xffff;
+                    builder.blockSize(bSize + 1);
+                } else {
+                    // already set bsize, duplicate BGZF subfield
+                    throw new MalformedBgzipDataException("Duplicate BGZF extrac subfield detected");
+                }
+            }
+            p += slen;
+        }
+        
+        if (bSize < 0) {
+            throw new MalformedBgzipDataException("Not a BGZF file");
+        }
+        
+        // Compressed data + CRC
+        final int dataLength = bSize - xlen - 19;
+        if (dataLength < 0) {
+            throw new MalformedBgzipDataException("Bad data length");
+        }
+        builder.dataLength(dataLength);
+        builder.dataOffset(blockOffset + 12 + xlen);
+        
+        // ISIZE, the last 4 bytes of block
+        if (!ensure(bSize + 1)) {
+            throw new MalformedBgzipDataException("Block is truncated");
+        }
+        final int isize = buffer.getInt((int) (blockOffset - bufferOffset) + bSize - 3);  // ISIZE of BGZF is limited to 0 ~ 65536
+        builder.inputLength(isize);
+        
+        blockOffset += bSize + 1;
+        
+        // Detect EOF marker
+        if (isize == 0) {
+            // null means EOF
+            return null;
+        }
+        
+        return builder.build();
+    }
+    
+    /**
+     * Makes sure <code>length</code> bytes starting from current block are available in buffer.
+     * 
+     * @return <code>false</code> if end of channel reached before <code>length</code> bytes are available
+     */
+    private boolean ensure(int length) throws IOException {
+        if (blockOffset + length <= bufferOffset + buffer.limit()) {
+            return true;
+        }
+        
+        // Discard bytes before current block, then fill the rest of buffer
+        int start = (int) (blockOffset - bufferOffset);
+        ((Buffer) buffer).position(start);
+        buffer.compact();
+        bufferOffset = blockOffset;
+        
+        long position = basePosition + bufferOffset + buffer.position();
+        if (channel instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) channel;
+            while (buffer.hasRemaining()) {
+                int n = fileChannel.read(buffer, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+        } else {
+            channel.position(position);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+        }
+        ((Buffer) buffer).flip();
+        
+        return length <= buffer.limit();
+    }
+    
+}
@@ -0,0 +1,46 @@
+package com.vivimice.bgzfrandreader;
+
+/**
+ * <p>Decompresses raw DEFLATE data of BGZF blocks</p>
+ * 
+ * <p>BGZF blocks are independent and their uncompressed length is known from ISIZE in block trailers,
+ * so each call decompresses a whole block in one go, straight into the destination array. Header and
+ * trailer of the block have been stripped, and are verified by readers.</p>
+ * 
+ * <p>Implementations are shared by all readers using them, and must be thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see RandomAccessBgzFile.Builder#decompressor(BgzipDecompressor)
+ * @see ConcurrentBgzFile.Builder#decompressor(BgzipDecompressor)
+ */
+public interface BgzipDecompressor {
+    
+    /**
+     * Decompresses with zlib through {@link java.util.zip.Inflater}, borrowed from a bounded pool
+     * shared by all readers. This is the default.
+     */
+    BgzipDecompressor ZLIB = new ZlibDecompressor();
+    
+    /**
+     * Decompresses with a pure Java, table driven DEFLATE decoder, which decodes a whole block
+     * without streaming state, and holds no native memory
+     */
+    BgzipDecompressor PURE_JAVA = new DeflateDecoder();
+    
+    /**
+     * <p>Decompresses raw DEFLATE data <code>src[srcOff, srcOff + srcLen)</code> into exactly
+     * <code>dstLen</code> bytes of <code>dst[dstOff, dstOff + dstLen)</code>.</p>
+     * 
+     * @param src Compressed data
+     * @param srcOff Start offset of compressed data in <code>src</code>
+     * @param srcLen Length of compressed data
+     * @param dst The array into which uncompressed data is written
+     * @param dstOff Start offset in <code>dst</code> at which uncompressed data is written
+     * @param dstLen Length of uncompressed data
+     * @throws MalformedBgzipDataException If compressed data is malformed, or doesn't decompress
+     *         to exactly <code>dstLen</code> bytes
+     */
+    void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws MalformedBgzipDataException;
+    
+}
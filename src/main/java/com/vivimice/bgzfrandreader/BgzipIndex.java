@@ -0,0 +1,508 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>Block index of a BGZF file</p>
+ * 
+ * <p>Maps offsets relative to uncompressed data to BGZF blocks. Blocks are stored in parallel
+ * primitive arrays sorted by uncompressed offset, which takes 20 bytes of heap per block.</p>
+ * 
+ * <p>Instances of this class are immutable, thus can be shared by multiple readers of the same file.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+public final class BgzipIndex implements Serializable {
+    
+    private static final long serialVersionUID = -2262105367851808425L;
+    
+    static final byte[] EOF_MARKER = {
+        0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+        0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+    };
+    
+    private final int blockCount;
+    private final long[] blockOffsets;
+    private final int[] blockSizes;
+    private final long[] inputOffsets;    // blockCount + 1 elements, the last one is total input length
+    
+    private BgzipIndex(int blockCount, long[] blockOffsets, int[] blockSizes, long[] inputOffsets) {
+        this.blockCount = blockCount;
+        this.blockOffsets = blockOffsets;
+        this.blockSizes = blockSizes;
+        this.inputOffsets = inputOffsets;
+    }
+    
+    /**
+     * <p>Gets number of non-empty blocks</p>
+     * 
+     * @return Number of non-empty blocks
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+    
+    /**
+     * <p>Gets uncompressed data length</p>
+     * 
+     * @return Total uncompressed data length
+     */
+    public long getInputLength() {
+        return inputOffsets[blockCount];
+    }
+    
+    /**
+     * <p>Gets offset of <code>i</code>-th block in compressed file</p>
+     * 
+     * @param i Block index
+     * @return Compressed offset of block header
+     */
+    public long getBlockOffset(int i) {
+        checkIndex(i);
+        return blockOffsets[i];
+    }
+    
+    /**
+     * <p>Gets total size of <code>i</code>-th block in compressed file, including header and trailer</p>
+     * 
+     * @param i Block index
+     * @return Block size
+     */
+    public int getBlockSize(int i) {
+        checkIndex(i);
+        return blockSizes[i];
+    }
+    
+    /**
+     * <p>Gets offset of <code>i</code>-th block's data relative to uncompressed data</p>
+     * 
+     * @param i Block index
+     * @return Uncompressed offset of block data
+     */
+    public long getInputOffset(int i) {
+        checkIndex(i);
+        return inputOffsets[i];
+    }
+    
+    /**
+     * <p>Gets uncompressed data length of <code>i</code>-th block</p>
+     * 
+     * @param i Block index
+     * @return Uncompressed data length of block
+     */
+    public int getInputLength(int i) {
+        checkIndex(i);
+        return (int) (inputOffsets[i + 1] - inputOffsets[i]);
+    }
+    
+    /**
+     * <p>Finds the block containing <code>pos</code> relative to uncompressed data</p>
+     * 
+     * @param pos
+     * @return Block index, or -1 if <code>pos</code> is negative or not less than {@link #getInputLength()}
+     */
+    public int indexOf(long pos) {
+        if (pos < 0 || pos >= inputOffsets[blockCount]) {
+            return -1;
+        }
+        
+        int i = Arrays.binarySearch(inputOffsets, 0, blockCount, pos);
+        return i >= 0 ? i : -i - 2;
+    }
+    
+    /**
+     * Total size of contiguous blocks starting from <code>i</code>-th block, which hold uncompressed data 
+     * before <code>inputEnd</code>, so that they can be read at once. The size doesn't exceed <code>maxSize</code>, 
+     * unless <code>i</code>-th block alone does.
+     */
+    int coalescedSize(int i, long inputEnd, int maxSize) {
+        checkIndex(i);
+        long size = blockSizes[i];
+        for (int j = i + 1; j < blockCount && inputOffsets[j] < inputEnd; j++) {
+            if (blockOffsets[j] != blockOffsets[i] + size || size + blockSizes[j] > maxSize) {
+                break;
+            }
+            size += blockSizes[j];
+        }
+        return (int) size;
+    }
+    
+    /**
+     * <p>Converts offset relative to uncompressed data to BGZF virtual file offset.</p>
+     * 
+     * <p>Virtual file offset, as used by BAM and tabix indices, is <code>coffset &lt;&lt; 16 | uoffset</code>, 
+     * where <code>coffset</code> is compressed offset of the block header, and <code>uoffset</code> is 
+     * offset within uncompressed data of the block. Offsets at block boundaries are addressed by the 
+     * start of the following block.</p>
+     * 
+     * @param pos Offset relative to uncompressed data, from 0 to {@link #getInputLength()} inclusive
+     * @return Virtual file offset
+     * @throws IllegalArgumentException If <code>pos</code> is out of range
+     */
+    public long toVirtualOffset(long pos) {
+        if (pos == inputOffsets[blockCount]) {
+            // end of data, points to the block following the last one, usually EOF marker
+            long end = blockCount > 0 ? blockOffsets[blockCount - 1] + blockSizes[blockCount - 1] : 0;
+            return end << 16;
+        }
+        int i = indexOf(pos);
+        if (i < 0) {
+            throw new IllegalArgumentException(String.format("Position %d out of range", pos));
+        }
+        return blockOffsets[i] << 16 | (pos - inputOffsets[i]);
+    }
+    
+    /**
+     * <p>Converts BGZF virtual file offset to offset relative to uncompressed data.</p>
+     * 
+     * @param virtualOffset Virtual file offset, <code>coffset &lt;&lt; 16 | uoffset</code>
+     * @return Offset relative to uncompressed data
+     * @throws IllegalArgumentException If <code>virtualOffset</code> doesn't address a position 
+     *         of uncompressed data
+     * @see #toVirtualOffset(long)
+     */
+    public long toInputOffset(long virtualOffset) {
+        long coffset = virtualOffset >>> 16;
+        int uoffset = (int) (virtualOffset & 0xffff);
+        
+        int i = Arrays.binarySearch(blockOffsets, 0, blockCount, coffset);
+        if (i >= 0) {
+            if (uoffset <= inputOffsets[i + 1] - inputOffsets[i]) {
+                return inputOffsets[i] + uoffset;
+            }
+        } else if (uoffset == 0) {
+            // Empty blocks (such as EOF marker) are not indexed, they are addressed with 
+            // uoffset = 0 only, and lie between indexed blocks
+            i = -i - 1;
+            if (i == 0 || blockOffsets[i - 1] + blockSizes[i - 1] <= coffset) {
+                return inputOffsets[i];
+            }
+        }
+        throw new IllegalArgumentException(String.format("Invalid virtual offset %d", virtualOffset));
+    }
+    
+    private void checkIndex(int i) {
+        if (i < 0 || i >= blockCount) {
+            throw new IndexOutOfBoundsException(String.format("Block %d out of range", i));
+        }
+    }
+    
+    /**
+     * <p>Writes this index to <code>out</code> in samtools compatible <code>.gzi</code> format.</p>
+     * 
+     * <p>Note: <code>out</code> won't be closed by this method.</p>
+     * 
+     * @param out
+     * @throws IOException If I/O error occurs
+     * @throws NullPointerException If <code>out</code> is <code>null</code>
+     */
+    public void writeGzi(OutputStream out) throws IOException {
+        // number of entries (the first block is implicit), followed by
+        // (compressed offset, uncompressed offset) pairs, all as little-endian uint64
+        ByteBuffer bb = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(Math.max(blockCount - 1, 0));
+        out.write(bb.array(), 0, 8);
+        for (int i = 1; i < blockCount; i++) {
+            ((Buffer) bb).clear();
+            bb.putLong(blockOffsets[i]);
+            bb.putLong(inputOffsets[i]);
+            out.write(bb.array());
+        }
+        out.flush();
+    }
+    
+    /**
+     * <p>Builds index by walking through all block headers of BGZF file, starting from 
+     * <code>channel</code>'s current position</p>
+     * 
+     * <p>Note: <code>channel</code>'s position may be changed after this method returns.</p>
+     * 
+     * @param channel
+     * @return Index of BGZF file, block offsets are relative to <code>channel</code>'s position 
+     *         before this method is called
+     * @throws IOException If I/O error occurs
+     * @throws NullPointerException If <code>channel</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public static BgzipIndex scan(SeekableByteChannel channel) throws IOException, MalformedBgzipDataException {
+        Builder builder = builder();
+        BgzipBlockScanner scanner = new BgzipBlockScanner(channel, channel.position(), BgzipBlockScanner.DEFAULT_BUFFER_SIZE);
+        while (true) {
+            BgzipBlock block = scanner.next();
+            if (block != null) {
+                builder.add(block);
+            } else {
+                break;
+            }
+        }
+        return builder.build();
+    }
+    
+    /**
+     * <p>Builds index by walking through all block headers of BGZF file, starting from 
+     * <code>channel</code>'s current position, scanning parts of the file in parallel.</p>
+     * 
+     * <p>The compressed file is split into byte ranges, each one is scanned by a task submitted 
+     * to <code>executor</code>, starting from the first block header found within its range. 
+     * Partial results are merged only if they form a continuous chain of blocks, ranges which 
+     * don't are scanned again sequentially, so the resulting index is identical to 
+     * {@link #scan(SeekableByteChannel)}'s. The calling thread scans the last range itself, and 
+     * returns after all tasks are finished, even if interrupted. Tasks rejected by <code>executor</code> 
+     * are run by the calling thread. Small files are scanned sequentially.</p>
+     * 
+     * <p>Note: <code>channel</code>'s position is not changed.</p>
+     * 
+     * @param channel
+     * @param executor Executor running scanning tasks, such as a {@link java.util.concurrent.ForkJoinPool}
+     * @return Index of BGZF file, block offsets are relative to <code>channel</code>'s position 
+     *         before this method is called
+     * @throws IOException If I/O error occurs
+     * @throws NullPointerException If <code>channel</code> or <code>executor</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public static BgzipIndex scan(FileChannel channel, Executor executor) throws IOException, MalformedBgzipDataException {
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+        return new ParallelIndexer(channel).scan(executor);
+    }
+    
+    /**
+     * Loads index of BGZF file from .gzi file if it's up to date, otherwise builds index by 
+     * walking through all block headers, in parallel if <code>executor</code> is not <code>null</code>, 
+     * and saves it to .gzi file. Failing to save the index is ignored, since it's optional.
+     */
+    static BgzipIndex loadOrScan(FileChannel channel, File file, File indexFile, Executor executor) 
+            throws IOException, MalformedBgzipDataException {
+        BgzipIndex index = load(channel, file, indexFile);
+        if (index == null) {
+            long position = channel.position();
+            index = executor != null ? scan(channel, executor) : scan(channel);
+            channel.position(position);
+            try {
+                saveGzi(index, indexFile);
+            } catch (IOException e) {
+                // index is optional, keep going without it
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Saves index to a temporary file next to <code>indexFile</code>, then renames it into place, so
+     * concurrent readers never see a partially written index
+     */
+    static void saveGzi(BgzipIndex index, File indexFile) throws IOException {
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        File tmpFile = File.createTempFile(indexFile.getName(), ".tmp", dir);
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+                index.writeGzi(out);
+            }
+            try {
+                Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmpFile.toPath());
+        }
+    }
+    
+    /**
+     * Loads index of BGZF file from .gzi file, returns <code>null</code> if index is absent or stale.
+     */
+    static BgzipIndex load(FileChannel channel, File file, File indexFile) throws IOException {
+        if (indexFile.isFile() && indexFile.lastModified() >= file.lastModified()) {
+            return readGzi(channel, indexFile);
+        }
+        return null;
+    }
+    
+    /**
+     * Loads index of BGZF file from .gzi file, returns <code>null</code> if index is stale.
+     */
+    static BgzipIndex readGzi(FileChannel channel, File indexFile) throws IOException {
+        long fileSize = channel.size();
+        
+        byte[] content = Files.readAllBytes(indexFile.toPath());
+        ByteBuffer bb = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        if (content.length < 8) {
+            return null;
+        }
+        long entryCount = bb.getLong();
+        if (entryCount < 0 || entryCount != (content.length - 8) / 16 || content.length % 16 != 8) {
+            return null;
+        }
+        
+        // All data blocks followed by an EOF marker block
+        long dataEnd = fileSize - EOF_MARKER.length;
+        if (dataEnd < 0 || !Arrays.equals(EOF_MARKER, readFully(channel, dataEnd, EOF_MARKER.length))) {
+            return null;
+        }
+        
+        // The first block is not listed in index
+        long[] blockOffsets = new long[(int) entryCount + 1];
+        long[] inputOffsets = new long[(int) entryCount + 1];
+        for (int i = 1; i <= entryCount; i++) {
+            blockOffsets[i] = bb.getLong();
+            inputOffsets[i] = bb.getLong();
+            if (blockOffsets[i] <= blockOffsets[i - 1] || inputOffsets[i] < inputOffsets[i - 1]) {
+                return null;
+            }
+        }
+        
+        int count = blockOffsets.length;
+        if (blockOffsets[count - 1] == dataEnd) {
+            // Index contains EOF marker block
+            count--;
+        }
+        if (count == 0 || blockOffsets[count - 1] >= dataEnd) {
+            return null;
+        }
+        
+        // Verify trailing block against index
+        long lastBlockSize = dataEnd - blockOffsets[count - 1];
+        if (lastBlockSize < 26 || readBlockSize(channel, blockOffsets[count - 1], lastBlockSize) != lastBlockSize) {
+            return null;
+        }
+        ByteBuffer isize = ByteBuffer.wrap(readFully(channel, dataEnd - 4, 4)).order(ByteOrder.LITTLE_ENDIAN);
+        long inputLength = (count < blockOffsets.length ? inputOffsets[count] : inputOffsets[count - 1] + isize.getInt(0));
+        
+        Builder builder = builder();
+        for (int i = 0; i < count; i++) {
+            long blockEnd = i + 1 < count ? blockOffsets[i + 1] : dataEnd;
+            long inputEnd = i + 1 < count ? inputOffsets[i + 1] : inputLength;
+            long blockSize = blockEnd - blockOffsets[i];
+            long blockInputLength = inputEnd - inputOffsets[i];
+            if (blockSize > BgzipBlock.MAX_BLOCK_SIZE || blockInputLength < 0 || blockInputLength > BgzipBlock.MAX_BLOCK_SIZE) {
+                return null;
+            }
+            if (blockInputLength == 0) {
+                // An empty block marks the end of file, as scanning stops at it
+                break;
+            }
+            builder.add(blockOffsets[i], (int) blockSize, (int) blockInputLength);
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Reads total size of block from BSIZE in BC subfield of block header at <code>position</code>, 
+     * returns -1 if there's no valid BGZF block header within <code>maxSize</code> bytes
+     */
+    private static long readBlockSize(FileChannel channel, long position, long maxSize) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(readFully(channel, position, 12)).order(ByteOrder.LITTLE_ENDIAN);
+        int xlen = header.getShort(10) & 0xffff;
+        if (header.getInt(0) != 0x04088b1f || 12 + xlen + 8 > maxSize) {
+            return -1;
+        }
+        
+        // Other tools may add subfields besides BC
+        ByteBuffer extra = ByteBuffer.wrap(readFully(channel, position + 12, xlen)).order(ByteOrder.LITTLE_ENDIAN);
+        long blockSize = -1;
+        while (extra.remaining() >= 4) {
+            int si = extra.getShort() & 0xffff;
+            int slen = extra.getShort() & 0xffff;
+            if (slen > extra.remaining()) {
+                return -1;
+            }
+            if (si == 0x4342) {
+                if (slen != 2 || blockSize != -1) {
+                    return -1;
+                }
+                blockSize = (extra.getShort(extra.position()) & 0xffff) + 1;
+            }
+            ((Buffer) extra).position(extra.position() + slen);
+        }
+        return extra.hasRemaining() ? -1 : blockSize;
+    }
+    
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(length);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return bb.array();
+    }
+    
+    public static Builder builder() {
+        return new Builder();
+    }
+    
+    public static class Builder {
+        private int blockCount = 0;
+        private long[] blockOffsets = new long[16];
+        private int[] blockSizes = new int[16];
+        private long[] inputOffsets = new long[17];
+        
+        /**
+         * <p>Appends a block after all previously added blocks. Empty blocks are ignored.</p>
+         * 
+         * @param blockOffset Compressed offset of block header
+         * @param blockSize Total size of block, including header and trailer
+         * @param inputLength Uncompressed data length of block
+         * @return This builder
+         */
+        public Builder add(long blockOffset, int blockSize, int inputLength) {
+            if (inputLength == 0) {
+                return this;
+            }
+            if (blockCount == blockOffsets.length) {
+                int capacity = blockCount * 2;
+                blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+                blockSizes = Arrays.copyOf(blockSizes, capacity);
+                inputOffsets = Arrays.copyOf(inputOffsets, capacity + 1);
+            }
+            blockOffsets[blockCount] = blockOffset;
+            blockSizes[blockCount] = blockSize;
+            inputOffsets[blockCount + 1] = inputOffsets[blockCount] + inputLength;
+            blockCount++;
+            return this;
+        }
+        
+        /**
+         * <p>Appends a block after all previously added blocks. Empty blocks are ignored.</p>
+         * 
+         * @param block
+         * @return This builder
+         */
+        public Builder add(BgzipBlock block) {
+            return add(block.getBlockOffset(), block.getBlockSize(), block.getInputLength());
+        }
+        
+        /**
+         * Creates an index of blocks added so far, sharing arrays with this builder. Later additions 
+         * only write beyond range of the snapshot, thus won't be visible to it.
+         */
+        BgzipIndex snapshot() {
+            return new BgzipIndex(blockCount, blockOffsets, blockSizes, inputOffsets);
+        }
+        
+        public BgzipIndex build() {
+            return new BgzipIndex(blockCount,
+                    Arrays.copyOf(blockOffsets, blockCount),
+                    Arrays.copyOf(blockSizes, blockCount),
+                    Arrays.copyOf(inputOffsets, blockCount + 1));
+        }
+    }
+    
+}
@@ -0,0 +1,70 @@
+package com.vivimice.bgzfrandreader;
+
+/**
+ * <p>Receives metrics of block level activities of readers</p>
+ * 
+ * <p>Readers without a listener skip all measurements, so instrumentation costs nothing unless
+ * enabled. Listeners are called synchronously on the reading thread, thus should return quickly.
+ * Listeners shared by multiple readers, or set to a {@link ConcurrentBgzFile}, or to a
+ * {@link RandomAccessBgzFile} with readahead enabled, are called from multiple threads
+ * concurrently, and must be thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see RandomAccessBgzFile#setMetricsListener(BgzipMetricsListener)
+ * @see ConcurrentBgzFile#setMetricsListener(BgzipMetricsListener)
+ */
+public interface BgzipMetricsListener {
+    
+    /**
+     * Where uncompressed data of a block is served from without decompressing it
+     */
+    enum CacheSource {
+        
+        /**
+         * Blocks kept by {@link RandomAccessBgzFile} around its last read, preceding and following it
+         */
+        LOCAL,
+        
+        /**
+         * Blocks decompressed ahead by readahead thread of {@link RandomAccessBgzFile}
+         */
+        READAHEAD,
+        
+        /**
+         * Block cache shared with other readers
+         * 
+         * @see BgzipBlockCache
+         */
+        SHARED
+        
+    }
+    
+    /**
+     * <p>Called after block index is built by walking through block headers, or loaded from
+     * <code>.gzi</code> index, while opening the file by a builder</p>
+     * 
+     * @param blockCount Number of non-empty blocks
+     * @param nanos Time spent, in nanoseconds
+     */
+    void indexBuilt(int blockCount, long nanos);
+    
+    /**
+     * <p>Called after a block is read from the file and decompressed</p>
+     * 
+     * @param blockOffset Offset of block in compressed file
+     * @param blockSize Total size of block, including header and trailer
+     * @param inputLength Uncompressed data length of block
+     * @param readNanos Time spent reading the block, in nanoseconds
+     * @param inflateNanos Time spent decompressing and verifying the block, in nanoseconds
+     */
+    void blockDecompressed(long blockOffset, int blockSize, int inputLength, long readNanos, long inflateNanos);
+    
+    /**
+     * <p>Called after uncompressed data is served from cache without decompression</p>
+     * 
+     * @param source Cache serving the data
+     * @param bytes Number of bytes served
+     */
+    void cacheHit(CacheSource source, int bytes);
+    
+}
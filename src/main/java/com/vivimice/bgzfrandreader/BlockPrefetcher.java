@@ -0,0 +1,169 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>Reads and decompresses consecutive blocks ahead of a sequential reader in a background thread</p>
+ * 
+ * <p>Decompressed blocks are handed over to the reader through a bounded queue in block order, so at
+ * most <code>capacity</code> blocks are decompressed ahead of the reader. Each prefetcher serves a single
+ * sequential run, once the reader leaves the run, it must {@link #cancel()} the prefetcher and start a
+ * new one if needed.</p>
+ * 
+ * <p>Errors in background thread are not reported, the prefetcher just stops, and the reader falls back to
+ * read the block by itself, which reports the error if it persists. {@link Error}s are left to propagate
+ * out of the background thread after the reader is told to fall back.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+class BlockPrefetcher implements Runnable {
+    
+    /**
+     * Marks the end of prefetched blocks due to errors
+     */
+    private static final Prefetched END = new Prefetched(-1, null);
+    
+    private final RandomAccessBgzFile file;
+    private final BgzipIndex index;
+    private final BgzipDecompressor decompressor;
+    private final BlockVerifier verifier;
+    private final BgzipMetricsListener metricsListener;
+    private final long basePosition;
+    private final int startBlock;
+    private final BlockingQueue<Prefetched> queue;
+    
+    private volatile boolean cancelled = false;
+    
+    /**
+     * Next block expected by reader, accessed by reader thread only
+     */
+    private int nextBlock;
+    
+    BlockPrefetcher(RandomAccessBgzFile file, BgzipIndex index, BgzipDecompressor decompressor, BlockVerifier verifier, 
+            BgzipMetricsListener metricsListener, long basePosition, int startBlock, int capacity) {
+        this.file = file;
+        this.index = index;
+        this.decompressor = decompressor;
+        this.verifier = verifier;
+        this.metricsListener = metricsListener;
+        this.basePosition = basePosition;
+        this.startBlock = startBlock;
+        this.nextBlock = startBlock;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+    
+    /**
+     * Starts prefetching in a new daemon thread
+     */
+    void start() {
+        Thread thread = new Thread(this, "bgzf-readahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Index of the block expected to be taken next
+     */
+    int nextBlock() {
+        return nextBlock;
+    }
+    
+    /**
+     * Takes uncompressed data of <code>block</code>, waiting for it to be decompressed if necessary.
+     * 
+     * @return Uncompressed data of <code>block</code>, or <code>null</code> if <code>block</code> is not the
+     *         next block, or the prefetcher is stopped before decompressing it, or <code>block</code> is 
+     *         beyond the (lazily built) index the prefetcher started with
+     */
+    byte[] take(int block) {
+        if (block != nextBlock || cancelled || block >= index.getBlockCount()) {
+            return null;
+        }
+        
+        Prefetched prefetched;
+        try {
+            prefetched = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (prefetched == END) {
+            // put it back for subsequent calls
+            queue.offer(END);
+            return null;
+        }
+        if (prefetched.block != block) {
+            return null;
+        }
+        nextBlock++;
+        return prefetched.data;
+    }
+    
+    /**
+     * Stops prefetching and discards all prefetched blocks. Background thread exits after the
+     * block in progress is done.
+     */
+    void cancel() {
+        cancelled = true;
+        // unblocks background thread waiting for free space
+        queue.clear();
+    }
+    
+    @Override
+    public void run() {
+        byte[] compressed = new byte[BgzipBlock.MAX_BLOCK_SIZE];
+        ByteBuffer compressedBuffer = ByteBuffer.wrap(compressed);
+        boolean failed = true;
+        try {
+            for (int i = startBlock; i < index.getBlockCount() && !cancelled; i++) {
+                int blockSize = index.getBlockSize(i);
+                int inputLength = index.getInputLength(i);
+                if (blockSize > BgzipBlock.MAX_BLOCK_SIZE || inputLength > BgzipBlock.MAX_BLOCK_SIZE) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: block too large");
+                }
+                
+                long startNanos = metricsListener != null ? System.nanoTime() : 0;
+                long blockPosition = basePosition + index.getBlockOffset(i);
+                file.readBlock(blockPosition, blockSize, compressedBuffer);
+                long readNanos = metricsListener != null ? System.nanoTime() : 0;
+                
+                byte[] data = new byte[inputLength];
+                BgzipBlock.inflate(decompressor, compressed, 0, blockSize, data, 0, inputLength);
+                if (verifier != null) {
+                    verifier.verify(i, compressed, 0, blockSize, data, 0, inputLength);
+                }
+                if (metricsListener != null) {
+                    metricsListener.blockDecompressed(blockPosition, blockSize, inputLength, 
+                            readNanos - startNanos, System.nanoTime() - readNanos);
+                }
+                queue.put(new Prefetched(i, data));
+            }
+            failed = cancelled;
+        } catch (IOException | RuntimeException | InterruptedException e) {
+            // reader will read the block by itself
+        } finally {
+            // also reached by errors thrown out of this thread, which must not leave the reader waiting
+            if (failed && !cancelled) {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    // exiting
+                }
+            }
+        }
+    }
+    
+    private static class Prefetched {
+        final int block;
+        final byte[] data;
+        
+        Prefetched(int block, byte[] data) {
+            this.block = block;
+            this.data = data;
+        }
+    }
+    
+}
@@ -0,0 +1,99 @@
+package com.vivimice.bgzfrandreader;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Decides which decompressed blocks to verify according to {@link CrcVerification} mode, and
+ * remembers verified blocks of a file in a bit set</p>
+ * 
+ * <p>This class is thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+class BlockVerifier {
+    
+    private final CrcVerification mode;
+    private volatile AtomicLongArray verified;
+    
+    BlockVerifier(CrcVerification mode, int blockCount) {
+        this.mode = mode;
+        this.verified = mode == CrcVerification.FIRST_READ ? new AtomicLongArray((blockCount + 63) >>> 6) : null;
+    }
+    
+    /**
+     * Creates a verifier of <code>mode</code>, or returns <code>null</code> if verification is off
+     */
+    static BlockVerifier of(CrcVerification mode, BgzipIndex index) {
+        if (mode == null) {
+            throw new NullPointerException();
+        }
+        return mode != CrcVerification.OFF ? new BlockVerifier(mode, index.getBlockCount()) : null;
+    }
+    
+    /**
+     * Verifies uncompressed data of <code>block</code> in <code>data[dataOff, dataOff + inputLength)</code> just 
+     * decompressed from <code>compressed[compressedOff, compressedOff + blockSize)</code>, unless it's been 
+     * verified before in {@link CrcVerification#FIRST_READ} mode
+     */
+    void verify(int block, byte[] compressed, int compressedOff, int blockSize, byte[] data, int dataOff, int inputLength)
+            throws MalformedBgzipDataException {
+        if (verified == null) {
+            check(compressed, compressedOff, blockSize, data, dataOff, inputLength);
+            return;
+        }
+        
+        int i = block >>> 6;
+        long mask = 1L << block;
+        AtomicLongArray verified = this.verified;
+        if (i < verified.length() && (verified.get(i) & mask) != 0) {
+            return;
+        }
+        check(compressed, compressedOff, blockSize, data, dataOff, inputLength);
+        if (i >= verified.length()) {
+            verified = grow(i + 1);
+        }
+        long bits;
+        do {
+            bits = verified.get(i);
+        } while (!verified.compareAndSet(i, bits, bits | mask));
+    }
+    
+    /**
+     * Verifies <code>data[dataOff, dataOff + inputLength)</code> inflated from the block stored in 
+     * <code>block[blockOff, blockOff + blockSize)</code> against CRC32 and ISIZE of the block trailer
+     */
+    static void check(byte[] block, int blockOff, int blockSize, byte[] data, int dataOff, int inputLength) 
+            throws MalformedBgzipDataException {
+        int trailer = blockOff + blockSize - 8;
+        if (readInt32(block, trailer + 4) != inputLength) {
+            throw new MalformedBgzipDataException("Wrong compressed data block: ISIZE mismatch");
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(data, dataOff, inputLength);
+        if ((int) crc32.getValue() != readInt32(block, trailer)) {
+            throw new MalformedBgzipDataException("Wrong compressed data block: CRC32 mismatch");
+        }
+    }
+    
+    private static int readInt32(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | ((b[off + 3] & 0xff) << 24);
+    }
+    
+    /**
+     * Grows bit set for blocks added to a lazily built index. Bits set concurrently during growth 
+     * may be lost, which only causes those blocks to be verified again.
+     */
+    private synchronized AtomicLongArray grow(int length) {
+        AtomicLongArray verified = this.verified;
+        if (length > verified.length()) {
+            AtomicLongArray grown = new AtomicLongArray(Math.max(length, verified.length() * 2));
+            for (int i = 0; i < verified.length(); i++) {
+                grown.set(i, verified.get(i));
+            }
+            this.verified = verified = grown;
+        }
+        return verified;
+    }
+    
+}
@@ -0,0 +1,942 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>A Thread Safe Random Access BGZF Reader</p>
+ * 
+ * <p>Unlike {@link RandomAccessBgzFile}, this class has no file position. Each read specifies the position
+ * to read from explicitly, and compressed data is read by positional reads of {@link FileChannel},
+ * so that multiple threads can read the same file concurrently without locking.</p>
+ * 
+ * <p>The block index is immutable and can be shared with other readers of the same file. Each concurrent
+ * read borrows scratch buffers from an internal pool, so the number of pooled buffers grows up to the 
+ * number of threads reading simultaneously. Decompressors ({@link java.util.zip.Inflater}) are borrowed 
+ * from a bounded pool shared by all readers, so native memory doesn't grow with the number of open files.</p>
+ * 
+ * <p>Reads can also be issued asynchronously by {@link #readAsync(long, int)}, without blocking a thread 
+ * on disk I/O and decompression for each outstanding read.</p>
+ * 
+ * <p>Note: Make sure {@link #close()} is called after use, otherwise the file will be kept open.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see RandomAccessBgzFile
+ */
+public class ConcurrentBgzFile implements Closeable, AutoCloseable {
+    
+    /**
+     * Minimum number of blocks decompressed by each task of parallel reads
+     */
+    static final int PARALLEL_BLOCKS_PER_TASK = 16;
+    
+    /**
+     * Maximum number of idle read contexts kept for reuse, contexts returned beyond it are dropped
+     */
+    static final int MAX_POOLED_CONTEXTS = 2 * Runtime.getRuntime().availableProcessors();
+    
+    private final boolean closeChannelOnClose;
+    private final FileChannel channel;
+    private final BgzipIndex index;
+    private final long inputLength;
+    private final long basePosition;
+    private final Queue<ReadContext> contexts = new ArrayBlockingQueue<>(MAX_POOLED_CONTEXTS);
+    private final Object fileKey;
+    private final MappedFileRegion mappedFile;
+    
+    // Asynchronous reads, channel is opened on first use
+    private final File file;
+    private final ExecutorService asyncExecutor;
+    private final Object asyncLock = new Object();
+    private AsynchronousFileChannel asyncChannel = null;
+    
+    private volatile boolean closed = false;
+    private volatile BlockCacheBinding blockCache = null;
+    private volatile BlockVerifier verifier = null;
+    private volatile BgzipDecompressor decompressor = BgzipDecompressor.ZLIB;
+    private volatile int maxCoalescedRead = BgzipBlock.DEFAULT_MAX_COALESCED_READ;
+    private volatile BgzipMetricsListener metricsListener = null;
+    
+    /**
+     * <p>Constructs a ConcurrentBgzFile instance using existing {@link File}, the block index
+     * is built by walking through all block headers of <code>file</code>.</p>
+     * 
+     * @param file
+     * @throws IOException If IO error occurs while building index
+     * @throws NullPointerException If <code>file</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     * @throws FileNotFoundException If <code>file</code> is not a valid file
+     */
+    public ConcurrentBgzFile(File file)
+            throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        this(file, null);
+    }
+    
+    /**
+     * <p>Constructs a ConcurrentBgzFile instance using existing {@link File} and its block index.</p>
+     * 
+     * @param file
+     * @param index Block index of <code>file</code>, or <code>null</code> to build it by walking
+     *        through all block headers of <code>file</code>
+     * @throws IOException If IO error occurs while building index
+     * @throws NullPointerException If <code>file</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     * @throws FileNotFoundException If <code>file</code> is not a valid file
+     * @see RandomAccessBgzFile#getIndex()
+     */
+    @SuppressWarnings("resource")
+    public ConcurrentBgzFile(File file, BgzipIndex index)
+            throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        this(file, FileIdentity.of(file), new FileInputStream(file).getChannel(), index, true, false, null);
+    }
+    
+    /**
+     * <p>Constructs a ConcurrentBgzFile instance using existing {@link FileChannel} and its block index.</p>
+     * 
+     * <p>Note: Offsets in <code>index</code> are relative to <code>channel</code>'s current position.
+     * Reading from this ConcurrentBgzFile won't change <code>channel</code>'s position.</p>
+     * 
+     * <p>Note: <code>channel</code> won't be closed when calling {@link #close()} method.</p>
+     * 
+     * @param channel
+     * @param index Block index of <code>channel</code>, or <code>null</code> to build it by walking 
+     *        through all block headers of <code>channel</code>
+     * @throws IOException If IO error occurs while building index
+     * @throws NullPointerException If <code>channel</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     * @see RandomAccessBgzFile#getIndex()
+     */
+    public ConcurrentBgzFile(FileChannel channel, BgzipIndex index) 
+            throws IOException, MalformedBgzipDataException {
+        this(null, null, channel, index, false, false, null);
+    }
+    
+    private ConcurrentBgzFile(File file, Object fileKey, FileChannel channel, BgzipIndex index, boolean closeChannelOnClose, 
+            boolean memoryMapped, ExecutorService asyncExecutor) throws IOException, MalformedBgzipDataException {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        this.file = file;
+        this.asyncExecutor = asyncExecutor;
+        this.fileKey = fileKey != null ? fileKey : channel;
+        this.channel = channel;
+        this.closeChannelOnClose = closeChannelOnClose;
+        
+        try {
+            this.basePosition = channel.position();
+            if (index == null) {
+                // Build index
+                index = BgzipIndex.scan(channel);
+                channel.position(basePosition);
+            }
+            this.mappedFile = memoryMapped ? new MappedFileRegion(channel) : null;
+        } catch (IOException | RuntimeException e) {
+            if (closeChannelOnClose) {
+                channel.close();
+            }
+            throw e;
+        }
+        
+        this.index = index;
+        this.inputLength = index.getInputLength();
+    }
+    
+    /**
+     * <p>Creates a builder of {@link ConcurrentBgzFile} reading <code>file</code>, which allows 
+     * to specify options such as block index and I/O mode.</p>
+     * 
+     * @param file
+     * @return A new builder
+     * @throws NullPointerException If <code>file</code> is <code>null</code>
+     */
+    public static Builder builder(File file) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        return new Builder(file);
+    }
+    
+    /**
+     * <p>Close this {@link ConcurrentBgzFile}</p>
+     * 
+     * <p>Reads in progress when this method is called may fail, including asynchronous reads. Once 
+     * this method is called, further reads will fail with {@link ClosedChannelException}.</p>
+     * 
+     * <p>Note: This method won't close underlying channel, unless this instance is constructed
+     * from {@link File}.</p>
+     * 
+     * @throws IOException If I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (closeChannelOnClose) {
+            channel.close();
+        }
+        synchronized (asyncLock) {
+            if (asyncChannel != null) {
+                asyncChannel.close();
+            }
+        }
+        releaseContexts();
+    }
+    
+    /**
+     * <p>Gets block index of this {@link ConcurrentBgzFile}</p>
+     * 
+     * @return Block index
+     */
+    public BgzipIndex getIndex() {
+        return index;
+    }
+    
+    /**
+     * <p>Gets uncompressed data length</p>
+     * 
+     * @return Total uncompressed data length
+     */
+    public long inputLength() {
+        return inputLength;
+    }
+    
+    /**
+     * <p>Sets block cache shared with other readers.</p>
+     * 
+     * <p>Blocks are identified by path, size and last modified time of the file, if this 
+     * {@link ConcurrentBgzFile} is constructed from {@link File}. Otherwise blocks are identified 
+     * by the underlying channel, thus won't be shared with readers of other channels. 
+     * Use {@link #setBlockCache(BgzipBlockCache, Object)} to identify the file explicitly.</p>
+     * 
+     * @param blockCache Block cache, or <code>null</code> to disable block cache
+     */
+    public void setBlockCache(BgzipBlockCache blockCache) {
+        setBlockCache(blockCache, fileKey);
+    }
+    
+    /**
+     * <p>Sets block cache shared with other readers, with blocks of this file identified by 
+     * <code>fileKey</code>.</p>
+     * 
+     * <p>Readers of the same file should use equal keys, and readers of different files must 
+     * use different keys.</p>
+     * 
+     * @param blockCache Block cache, or <code>null</code> to disable block cache
+     * @param fileKey Identity of the file
+     * @throws NullPointerException If <code>blockCache</code> is not <code>null</code> while 
+     *         <code>fileKey</code> is <code>null</code>
+     */
+    public void setBlockCache(BgzipBlockCache blockCache, Object fileKey) {
+        if (blockCache != null && fileKey == null) {
+            throw new NullPointerException();
+        }
+        this.blockCache = blockCache != null ? new BlockCacheBinding(blockCache, fileKey) : null;
+    }
+    
+    /**
+     * <p>Sets maximum number of bytes read from the file at once. Compressed data of contiguous blocks 
+     * covered by a read is read in one go up to this size, then decompressed block by block, which turns 
+     * many small reads into a few large ones, saving system calls and round trips of network file systems. 
+     * Values not greater than a block disable coalescing. 1 MiB by default.</p>
+     * 
+     * <p>Reads through memory mapping are never coalesced, as they don't involve system calls.</p>
+     * 
+     * @param bytes Maximum number of bytes read at once
+     * @throws IllegalArgumentException If <code>bytes</code> is negative
+     */
+    public void setMaxCoalescedRead(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException(String.format("Negative read size %d", bytes));
+        }
+        this.maxCoalescedRead = bytes;
+    }
+    
+    /**
+     * <p>Sets whether to verify uncompressed data of blocks against CRC32 and ISIZE in block trailers.</p>
+     * 
+     * <p>Blocks are verified right after being decompressed, a mismatch fails the read with 
+     * {@link MalformedBgzipDataException}. Blocks served from block cache are not verified again. 
+     * In {@link CrcVerification#FIRST_READ} mode, verified blocks are remembered across all threads 
+     * reading this {@link ConcurrentBgzFile}. Verification is off by default.</p>
+     * 
+     * @param mode Verification mode
+     * @throws NullPointerException If <code>mode</code> is <code>null</code>
+     * @see CrcVerification
+     */
+    public void setCrcVerification(CrcVerification mode) {
+        this.verifier = BlockVerifier.of(mode, index);
+    }
+    
+    /**
+     * <p>Sets decompressor of block data, {@link BgzipDecompressor#ZLIB} by default. 
+     * {@link BgzipDecompressor#PURE_JAVA} decodes whole blocks in Java, without native memory.</p>
+     * 
+     * @param decompressor
+     * @throws NullPointerException If <code>decompressor</code> is <code>null</code>
+     */
+    public void setDecompressor(BgzipDecompressor decompressor) {
+        if (decompressor == null) {
+            throw new NullPointerException();
+        }
+        this.decompressor = decompressor;
+    }
+    
+    /**
+     * <p>Sets listener receiving block level metrics of reads, such as blocks decompressed, time spent 
+     * reading and decompressing them, and cache hits. To measure time spent building block index, 
+     * use {@link Builder#metricsListener(BgzipMetricsListener)} instead.</p>
+     * 
+     * <p>Metrics are not measured without a listener. The listener is called from all threads 
+     * reading this {@link ConcurrentBgzFile}, thus must be thread safe.</p>
+     * 
+     * @param listener Metrics listener, or <code>null</code> to disable metrics
+     */
+    public void setMetricsListener(BgzipMetricsListener listener) {
+        this.metricsListener = listener;
+    }
+    
+    /**
+     * <p>Read up to <code>len</code> bytes of uncompressed data starting from <code>pos</code>
+     * relative to uncompressed data into <code>b</code> starting from <code>off</code></p>
+     * 
+     * <p>This method can be called by multiple threads concurrently.</p>
+     * 
+     * @param pos The position relative to uncompressed data to read from
+     * @param b The buffer into which the data will read
+     * @param off The start offset in array b at which the data is written.
+     * @param len The maximum number of bytes read
+     * @return The total number of bytes read into the buffer,
+     *         or -1 if <code>pos</code> is not less than {@link #inputLength()}.
+     * @throws IOException If I/O error occurs
+     * @throws NullPointerException If <code>b</code> is <code>null</code>
+     * @throws IllegalArgumentException If <code>pos</code> is negative
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public int read(long pos, byte[] b, int off, int len) throws IOException, MalformedBgzipDataException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        return read(pos, b, null, off, len);
+    }
+    
+    /**
+     * <p>Read up to <code>dst.remaining()</code> bytes of uncompressed data starting from 
+     * <code>pos</code> into <code>dst</code></p>
+     * 
+     * <p>Uncompressed data is copied straight into <code>dst</code>, which saves an intermediate 
+     * array for direct buffers. Position of <code>dst</code> is advanced by the number of bytes read.</p>
+     * 
+     * <p>This method can be invoked concurrently by multiple threads.</p>
+     * 
+     * @param pos Position relative to uncompressed data
+     * @param dst The buffer into which the data will read
+     * @return The total number of bytes read into the buffer, 
+     *         or -1 if <code>pos</code> is greater than or equal to uncompressed data length
+     * @throws IOException If I/O error occurs
+     * @throws ClosedChannelException If this {@link ConcurrentBgzFile} is closed
+     * @throws NullPointerException If <code>dst</code> is <code>null</code>
+     * @throws ReadOnlyBufferException If <code>dst</code> is read-only
+     * @throws IllegalArgumentException If <code>pos</code> is negative
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public int read(long pos, ByteBuffer dst) throws IOException, MalformedBgzipDataException {
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        int cb;
+        if (dst.hasArray()) {
+            cb = read(pos, dst.array(), null, dst.arrayOffset() + dst.position(), dst.remaining());
+            if (cb > 0) {
+                ((Buffer) dst).position(dst.position() + cb);
+            }
+        } else {
+            cb = read(pos, null, dst, 0, dst.remaining());
+        }
+        return cb;
+    }
+    
+    /**
+     * <p>Read up to <code>len</code> bytes of uncompressed data starting from <code>pos</code> 
+     * into <code>b</code> starting from <code>off</code>, decompressing blocks in parallel.</p>
+     * 
+     * <p>The range is split at block boundaries into groups of consecutive blocks, each group is 
+     * decompressed by a task submitted to <code>executor</code> with its own decompressor, straight 
+     * into its own part of <code>b</code>. The calling thread decompresses the last group itself, 
+     * and returns after all tasks are finished, even if interrupted. Tasks rejected by <code>executor</code> are run 
+     * by the calling thread. Ranges too short to benefit from parallelism are read sequentially 
+     * as {@link #read(long, byte[], int, int)} does.</p>
+     * 
+     * <p>This method can be invoked concurrently by multiple threads.</p>
+     * 
+     * @param pos Position relative to uncompressed data
+     * @param b The buffer into which the data will read
+     * @param off The start offset in array b at which the data is written.
+     * @param len The maximum number of bytes read
+     * @param executor Executor running decompression tasks, such as a {@link java.util.concurrent.ForkJoinPool}
+     * @return The total number of bytes read into the buffer, 
+     *         or -1 if <code>pos</code> is greater than or equal to uncompressed data length
+     * @throws IOException If I/O error occurs
+     * @throws ClosedChannelException If this {@link ConcurrentBgzFile} is closed
+     * @throws NullPointerException If <code>b</code> or <code>executor</code> is <code>null</code>
+     * @throws IllegalArgumentException If <code>pos</code> is negative
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public int read(long pos, byte[] b, int off, int len, Executor executor) 
+            throws IOException, MalformedBgzipDataException {
+        if (b == null || executor == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (pos < 0 || pos >= inputLength) {
+            return read(pos, b, null, off, len);
+        }
+        
+        len = (int) Math.min(len, inputLength - pos);
+        int first = index.indexOf(pos);
+        int last = len > 0 ? index.indexOf(pos + len - 1) : first;
+        if (last - first < PARALLEL_BLOCKS_PER_TASK) {
+            return read(pos, b, null, off, len);
+        }
+        
+        // Split into tasks at block boundaries, the last group is left for calling thread
+        List<FutureTask<Integer>> tasks = new ArrayList<>();
+        long taskPos = pos;
+        for (int i = first + PARALLEL_BLOCKS_PER_TASK; i <= last; i += PARALLEL_BLOCKS_PER_TASK) {
+            long taskEnd = index.getInputOffset(i);
+            FutureTask<Integer> task = newReadTask(taskPos, b, off + (int) (taskPos - pos), (int) (taskEnd - taskPos));
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+            taskPos = taskEnd;
+        }
+        FutureTask<Integer> task = newReadTask(taskPos, b, off + (int) (taskPos - pos), (int) (pos + len - taskPos));
+        tasks.add(task);
+        task.run();
+        
+        // Wait for all tasks even if some of them fail, since they write to b
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (FutureTask<Integer> t : tasks) {
+            while (true) {
+                try {
+                    t.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+        return len;
+    }
+    
+    /**
+     * <p>Reads up to <code>len</code> bytes of uncompressed data starting from <code>pos</code> asynchronously.</p>
+     * 
+     * <p>Compressed data of blocks covering the range is read by an {@link AsynchronousFileChannel}, in runs 
+     * of contiguous blocks up to {@link #setMaxCoalescedRead(int) maximum size of coalesced reads}. Each run is 
+     * decompressed by the thread completing its I/O, which is a thread of {@link Builder#asyncExecutor(ExecutorService)}, 
+     * or of the default thread pool of {@link AsynchronousFileChannel}. Block cache is not used by asynchronous 
+     * reads. This method returns immediately, so that many reads can be outstanding without dedicating a 
+     * thread to each of them.</p>
+     * 
+     * <p>This method can be invoked concurrently by multiple threads.</p>
+     * 
+     * @param pos Position relative to uncompressed data
+     * @param len The maximum number of bytes read
+     * @return Future of a buffer holding uncompressed data read from <code>pos</code>, which has no remaining bytes 
+     *         if <code>pos</code> is greater than or equal to uncompressed data length. The future fails with 
+     *         {@link IOException}, such as {@link ClosedChannelException} or {@link MalformedBgzipDataException}, 
+     *         if the read fails.
+     * @throws IllegalArgumentException If <code>pos</code> or <code>len</code> is negative
+     * @throws UnsupportedOperationException If this {@link ConcurrentBgzFile} is not constructed from {@link File}
+     * @see #readAsync(long, int, Object, CompletionHandler)
+     */
+    public Future<ByteBuffer> readAsync(long pos, int len) {
+        AsyncRead.ReadFuture future = new AsyncRead.ReadFuture();
+        readAsync(pos, len, null, future);
+        return future;
+    }
+    
+    /**
+     * <p>Reads up to <code>len</code> bytes of uncompressed data starting from <code>pos</code> asynchronously, 
+     * as {@link #readAsync(long, int)} does, and completes <code>handler</code> with a buffer holding uncompressed 
+     * data read.</p>
+     * 
+     * <p>The handler is invoked by the thread decompressing the last part of the range, or by calling thread 
+     * if there's nothing to read, and should return quickly.</p>
+     * 
+     * @param pos Position relative to uncompressed data
+     * @param len The maximum number of bytes read
+     * @param attachment The object to attach to the read, can be <code>null</code>
+     * @param handler The handler completed with the buffer holding uncompressed data
+     * @throws NullPointerException If <code>handler</code> is <code>null</code>
+     * @throws IllegalArgumentException If <code>pos</code> or <code>len</code> is negative
+     * @throws UnsupportedOperationException If this {@link ConcurrentBgzFile} is not constructed from {@link File}
+     */
+    public <A> void readAsync(long pos, int len, A attachment, CompletionHandler<ByteBuffer, ? super A> handler) {
+        if (handler == null) {
+            throw new NullPointerException();
+        }
+        if (pos < 0) {
+            throw new IllegalArgumentException(String.format("Negative position %d", pos));
+        }
+        if (len < 0) {
+            throw new IllegalArgumentException(String.format("Negative length %d", len));
+        }
+        if (file == null) {
+            throw new UnsupportedOperationException("Asynchronous reads require ConcurrentBgzFile constructed from File");
+        }
+        
+        AsynchronousFileChannel asyncChannel;
+        try {
+            asyncChannel = asyncChannel();
+        } catch (IOException e) {
+            handler.failed(e, attachment);
+            return;
+        }
+        len = (int) Math.max(Math.min(len, inputLength - pos), 0);
+        if (len == 0) {
+            handler.completed(ByteBuffer.allocate(0), attachment);
+            return;
+        }
+        new AsyncRead<A>(asyncChannel, index, basePosition, decompressor, verifier, metricsListener, 
+                pos, len, attachment, handler).start(maxCoalescedRead);
+    }
+    
+    private AsynchronousFileChannel asyncChannel() throws IOException {
+        synchronized (asyncLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (asyncChannel == null) {
+                asyncChannel = AsynchronousFileChannel.open(file.toPath(), 
+                        Collections.<OpenOption>singleton(StandardOpenOption.READ), asyncExecutor);
+            }
+            return asyncChannel;
+        }
+    }
+    
+    private FutureTask<Integer> newReadTask(final long pos, final byte[] b, final int off, final int len) {
+        return new FutureTask<>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int cb = read(pos, b, null, off, len);
+                if (cb != len) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to decompress");
+                }
+                return cb;
+            }
+        });
+    }
+    
+    /**
+     * Reads uncompressed data either into <code>b</code> starting from <code>off</code>, 
+     * or into <code>dst</code> if <code>b</code> is <code>null</code>
+     */
+    private int read(long pos, byte[] b, ByteBuffer dst, int off, int len) 
+            throws IOException, MalformedBgzipDataException {
+        if (pos < 0) {
+            throw new IllegalArgumentException(String.format("Negative position %d", pos));
+        }
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= inputLength) {
+            return -1;
+        }
+        
+        BlockCacheBinding blockCache = this.blockCache;
+        BlockVerifier verifier = this.verifier;
+        BgzipDecompressor decompressor = this.decompressor;
+        BgzipMetricsListener metricsListener = this.metricsListener;
+        int maxCoalescedRead = this.maxCoalescedRead;
+        ReadContext context = borrowContext();
+        try {
+            // compressed data of blocks read at once in context.compressed[0, bufferedLength)
+            long bufferedPosition = 0;
+            int bufferedLength = 0;
+            final long end = pos + len;
+            
+            int cb = 0;
+            for (int i = index.indexOf(pos); len > 0 && i < index.getBlockCount(); i++) {
+                long inputOffset = index.getInputOffset(i);
+                int inputLength = index.getInputLength(i);
+                int blockSize = index.getBlockSize(i);
+                if (blockSize > BgzipBlock.MAX_BLOCK_SIZE || inputLength > BgzipBlock.MAX_BLOCK_SIZE) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: block too large");
+                }
+                
+                // Fully covered blocks are inflated straight into b instead of a scratch buffer
+                boolean direct = b != null && inputOffset == pos && inputLength <= len;
+                long blockPosition = basePosition + index.getBlockOffset(i);
+                byte[] inputData = blockCache != null ? blockCache.cache.get(blockCache.fileKey, blockPosition) : null;
+                if (inputData != null && inputData.length == inputLength && metricsListener != null) {
+                    metricsListener.cacheHit(BgzipMetricsListener.CacheSource.SHARED, inputData.length);
+                }
+                if (inputData == null || inputData.length != inputLength) {
+                    long startNanos = metricsListener != null ? System.nanoTime() : 0;
+                    
+                    // Read whole block, including header and trailer, along with contiguous blocks following 
+                    // it in this read, unless it's been read along with preceding blocks
+                    if (blockPosition < bufferedPosition || blockPosition + blockSize > bufferedPosition + bufferedLength) {
+                        bufferedLength = mappedFile != null ? blockSize : index.coalescedSize(i, end, maxCoalescedRead);
+                        readBlock(context, blockPosition, bufferedLength);
+                        bufferedPosition = blockPosition;
+                    }
+                    int blockOff = (int) (blockPosition - bufferedPosition);
+                    long readNanos = metricsListener != null ? System.nanoTime() : 0;
+                    
+                    // Uncompress
+                    byte[] target = direct ? b : context.inputData;
+                    int targetOff = direct ? off : 0;
+                    BgzipBlock.inflate(decompressor, context.compressed, blockOff, blockSize, target, targetOff, inputLength);
+                    if (verifier != null) {
+                        verifier.verify(i, context.compressed, blockOff, blockSize, target, targetOff, inputLength);
+                    }
+                    if (metricsListener != null) {
+                        metricsListener.blockDecompressed(blockPosition, blockSize, inputLength, 
+                                readNanos - startNanos, System.nanoTime() - readNanos);
+                    }
+                    
+                    if (blockCache != null) {
+                        blockCache.cache.put(blockCache.fileKey, blockPosition, 
+                                Arrays.copyOfRange(target, targetOff, targetOff + inputLength));
+                    }
+                    
+                    if (direct) {
+                        len -= inputLength;
+                        pos += inputLength;
+                        off += inputLength;
+                        cb += inputLength;
+                        continue;
+                    }
+                    inputData = target;
+                }
+                
+                int copyStart = (int) (pos - inputOffset);
+                int copyLength = Math.min(inputLength - copyStart, len);
+                if (b != null) {
+                    System.arraycopy(inputData, copyStart, b, off, copyLength);
+                } else {
+                    dst.put(inputData, copyStart, copyLength);
+                }
+                
+                len -= copyLength;
+                pos += copyLength;
+                off += copyLength;
+                cb += copyLength;
+            }
+            return cb;
+        } finally {
+            returnContext(context);
+        }
+    }
+    
+    private void readBlock(ReadContext context, long blockPosition, int blockSize) 
+            throws IOException, MalformedBgzipDataException {
+        if (blockSize > context.compressed.length) {
+            context.compressed = new byte[blockSize];
+            context.compressedBuffer = ByteBuffer.wrap(context.compressed);
+        }
+        if (mappedFile != null) {
+            try {
+                mappedFile.read(blockPosition, context.compressed, 0, blockSize);
+            } catch (EOFException e) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to read", e);
+            }
+        } else {
+            ByteBuffer bb = context.compressedBuffer;
+            ((Buffer) bb).clear();
+            ((Buffer) bb).limit(blockSize);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, blockPosition + bb.position()) < 0) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to read");
+                }
+            }
+        }
+    }
+    
+    private ReadContext borrowContext() {
+        ReadContext context = contexts.poll();
+        return context != null ? context : new ReadContext();
+    }
+    
+    private void returnContext(ReadContext context) {
+        // dropped if the pool is full, so buffers held while idle are bounded whatever the peak concurrency
+        contexts.offer(context);
+        if (closed) {
+            // close() may have drained the pool before this context is returned
+            releaseContexts();
+        }
+    }
+    
+    private void releaseContexts() {
+        contexts.clear();
+    }
+    
+    /**
+     * <p>Builder of {@link ConcurrentBgzFile}</p>
+     * 
+     * @see ConcurrentBgzFile#builder(File)
+     */
+    public static class Builder {
+        private final File file;
+        private BgzipIndex index;
+        private File indexFile;
+        private boolean memoryMapped;
+        private int maxCoalescedRead = BgzipBlock.DEFAULT_MAX_COALESCED_READ;
+        private CrcVerification crcVerification = CrcVerification.OFF;
+        private BgzipDecompressor decompressor = BgzipDecompressor.ZLIB;
+        private Executor scanExecutor;
+        private BgzipMetricsListener metricsListener;
+        private ExecutorService asyncExecutor;
+        
+        private Builder(File file) {
+            this.file = file;
+        }
+        
+        /**
+         * <p>Uses an existing block index of the file, such as one obtained from 
+         * {@link RandomAccessBgzFile#getIndex()} or {@link ConcurrentBgzFile#getIndex()}.</p>
+         * 
+         * @param index
+         * @return This builder
+         */
+        public Builder index(BgzipIndex index) {
+            this.index = index;
+            return this;
+        }
+        
+        /**
+         * <p>Loads block index from a samtools compatible <code>.gzi</code> index. If the index 
+         * is absent or stale, it's built by walking through all block headers of the file, and 
+         * saved to <code>indexFile</code>. Ignored if {@link #index(BgzipIndex)} is specified.</p>
+         * 
+         * @param indexFile
+         * @return This builder
+         */
+        public Builder indexFile(File indexFile) {
+            this.indexFile = indexFile;
+            return this;
+        }
+        
+        /**
+         * <p>Reads compressed data through memory mapping of the file, instead of positional 
+         * reads of file channel. This saves a system call per block, which is preferable if 
+         * the file is resident in page cache. Disabled by default.</p>
+         * 
+         * <p>Note: Mapped memory is not released by {@link ConcurrentBgzFile#close()}, 
+         * but when {@link ConcurrentBgzFile} object is garbage collected.</p>
+         * 
+         * @param memoryMapped
+         * @return This builder
+         */
+        public Builder memoryMapped(boolean memoryMapped) {
+            this.memoryMapped = memoryMapped;
+            return this;
+        }
+        
+        /**
+         * <p>Sets maximum number of bytes read from the file at once, when reading compressed data 
+         * of contiguous blocks. 1 MiB by default.</p>
+         * 
+         * @param bytes
+         * @return This builder
+         * @throws IllegalArgumentException If <code>bytes</code> is negative
+         * @see ConcurrentBgzFile#setMaxCoalescedRead(int)
+         */
+        public Builder maxCoalescedRead(int bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException(String.format("Negative read size %d", bytes));
+            }
+            this.maxCoalescedRead = bytes;
+            return this;
+        }
+        
+        /**
+         * <p>Sets whether to verify uncompressed data of blocks against CRC32 and ISIZE in 
+         * block trailers. {@link CrcVerification#OFF} by default.</p>
+         * 
+         * @param mode
+         * @return This builder
+         * @throws NullPointerException If <code>mode</code> is <code>null</code>
+         * @see ConcurrentBgzFile#setCrcVerification(CrcVerification)
+         */
+        public Builder crcVerification(CrcVerification mode) {
+            if (mode == null) {
+                throw new NullPointerException();
+            }
+            this.crcVerification = mode;
+            return this;
+        }
+        
+        /**
+         * <p>Builds block index by scanning parts of the file in parallel with tasks submitted to 
+         * <code>executor</code>, if the index is neither specified by {@link #index(BgzipIndex)} nor loaded 
+         * from {@link #indexFile(File)}. By default the index is built sequentially by calling thread.</p>
+         * 
+         * @param executor Executor running scanning tasks, or <code>null</code> to scan sequentially
+         * @return This builder
+         * @see BgzipIndex#scan(FileChannel, Executor)
+         */
+        public Builder scanExecutor(Executor executor) {
+            this.scanExecutor = executor;
+            return this;
+        }
+        
+        /**
+         * <p>Sets decompressor of block data. {@link BgzipDecompressor#ZLIB} by default.</p>
+         * 
+         * @param decompressor
+         * @return This builder
+         * @throws NullPointerException If <code>decompressor</code> is <code>null</code>
+         * @see ConcurrentBgzFile#setDecompressor(BgzipDecompressor)
+         */
+        public Builder decompressor(BgzipDecompressor decompressor) {
+            if (decompressor == null) {
+                throw new NullPointerException();
+            }
+            this.decompressor = decompressor;
+            return this;
+        }
+        
+        /**
+         * <p>Sets listener receiving block level metrics, including time spent building or loading 
+         * block index while opening the file. Disabled by default.</p>
+         * 
+         * @param listener Metrics listener, or <code>null</code> to disable metrics
+         * @return This builder
+         * @see ConcurrentBgzFile#setMetricsListener(BgzipMetricsListener)
+         */
+        public Builder metricsListener(BgzipMetricsListener listener) {
+            this.metricsListener = listener;
+            return this;
+        }
+        
+        /**
+         * <p>Sets executor of asynchronous reads, which completes I/O of compressed data and decompresses it. 
+         * By default, the default thread pool of {@link AsynchronousFileChannel} is used.</p>
+         * 
+         * @param executor Executor of asynchronous reads, or <code>null</code> to use the default thread pool
+         * @return This builder
+         * @see ConcurrentBgzFile#readAsync(long, int)
+         * @see AsynchronousFileChannel#open(java.nio.file.Path, java.util.Set, ExecutorService, java.nio.file.attribute.FileAttribute...)
+         */
+        public Builder asyncExecutor(ExecutorService executor) {
+            this.asyncExecutor = executor;
+            return this;
+        }
+        
+        /**
+         * <p>Opens the file and builds a {@link ConcurrentBgzFile}</p>
+         * 
+         * @return A new {@link ConcurrentBgzFile} instance
+         * @throws IOException If IO error occurs while loading or building index
+         * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+         * @throws FileNotFoundException If the file is not a valid file
+         */
+        public ConcurrentBgzFile build() throws IOException, FileNotFoundException, MalformedBgzipDataException {
+            Object fileKey = FileIdentity.of(file);
+            FileChannel channel = new FileInputStream(file).getChannel();
+            BgzipIndex index = this.index;
+            try {
+                long startNanos = System.nanoTime();
+                if (index == null && indexFile != null) {
+                    index = BgzipIndex.loadOrScan(channel, file, indexFile, scanExecutor);
+                }
+                if (index == null) {
+                    index = scanExecutor != null ? BgzipIndex.scan(channel, scanExecutor) : BgzipIndex.scan(channel);
+                }
+                if (metricsListener != null && index != this.index) {
+                    metricsListener.indexBuilt(index.getBlockCount(), System.nanoTime() - startNanos);
+                }
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            ConcurrentBgzFile bgzFile = new ConcurrentBgzFile(file, fileKey, channel, index, true, memoryMapped, asyncExecutor);
+            bgzFile.setMaxCoalescedRead(maxCoalescedRead);
+            bgzFile.setCrcVerification(crcVerification);
+            bgzFile.setDecompressor(decompressor);
+            bgzFile.setMetricsListener(metricsListener);
+            return bgzFile;
+        }
+    }
+    
+    /**
+     * Block cache and the key identifying this file in it
+     */
+    private static class BlockCacheBinding {
+        final BgzipBlockCache cache;
+        final Object fileKey;
+        
+        BlockCacheBinding(BgzipBlockCache cache, Object fileKey) {
+            this.cache = cache;
+            this.fileKey = fileKey;
+        }
+    }
+    
+    /**
+     * Scratch buffers used by a single read
+     */
+    private static class ReadContext {
+        byte[] compressed = new byte[BgzipBlock.MAX_BLOCK_SIZE];
+        ByteBuffer compressedBuffer = ByteBuffer.wrap(compressed);
+        final byte[] inputData = new byte[BgzipBlock.MAX_BLOCK_SIZE];
+    }
+    
+}
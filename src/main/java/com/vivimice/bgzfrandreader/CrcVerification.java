@@ -0,0 +1,30 @@
+package com.vivimice.bgzfrandreader;
+
+/**
+ * <p>Modes of verifying uncompressed data of blocks against CRC32 and ISIZE in block trailers</p>
+ * 
+ * <p>Verification happens right after a block is decompressed. Blocks served from local or shared
+ * block cache are not decompressed, thus not verified again.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see RandomAccessBgzFile#setCrcVerification(CrcVerification)
+ * @see ConcurrentBgzFile#setCrcVerification(CrcVerification)
+ */
+public enum CrcVerification {
+    
+    /**
+     * Blocks are never verified. This is the default.
+     */
+    OFF,
+    
+    /**
+     * Each block is verified the first time it's decompressed by a reader, and trusted afterwards
+     */
+    FIRST_READ,
+    
+    /**
+     * Blocks are verified every time they're decompressed
+     */
+    ALWAYS
+    
+}
@@ -0,0 +1,474 @@
+package com.vivimice.bgzfrandreader;
+
+import java.util.Arrays;
+
+/**
+ * <p>Pure Java DEFLATE (RFC 1951) decoder of whole BGZF blocks</p>
+ * 
+ * <p>Unlike zlib, the decoder is not streaming: the whole compressed data is available, and the
+ * destination is sized to ISIZE of the block, so there's no state to save between calls, no window
+ * to maintain (back references are copied within the destination array), and bounds are checked
+ * once per symbol. Huffman codes are decoded by table lookup: codes up to {@link #LITLEN_BITS} or
+ * {@link #DIST_BITS} bits are resolved by a single lookup of a primary table, longer codes by a second
+ * lookup of a subtable. Bits are buffered in a <code>long</code>, which holds enough bits for a whole
+ * length/distance pair after each refill.</p>
+ * 
+ * <p>This class is thread safe. Tables of dynamic Huffman codes are kept per thread.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see BgzipDecompressor#PURE_JAVA
+ */
+class DeflateDecoder implements BgzipDecompressor {
+    
+    private static final int LITLEN_BITS = 10;
+    private static final int DIST_BITS = 8;
+    private static final int CODELEN_BITS = 7;
+    private static final int MAX_CODE_BITS = 15;
+    
+    /**
+     * Table sizes: primary table, plus a subtable of (MAX_CODE_BITS - tableBits) bits for at most each symbol
+     */
+    private static final int LITLEN_TABLE_SIZE = (1 << LITLEN_BITS) + 288 * (1 << (MAX_CODE_BITS - LITLEN_BITS));
+    private static final int DIST_TABLE_SIZE = (1 << DIST_BITS) + 32 * (1 << (MAX_CODE_BITS - DIST_BITS));
+    
+    /**
+     * Table entries are either <code>symbol &lt;&lt; 16 | codeBits</code>, or subtable pointers of
+     * <code>SUBTABLE | subtableStart &lt;&lt; 4 | subtableBits</code>, or <code>INVALID</code>
+     */
+    private static final int SUBTABLE = 1 << 30;
+    private static final int INVALID = 1 << 31;
+    
+    private static final int[] LENGTH_BASE = {
+        3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+        35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+    };
+    private static final int[] LENGTH_EXTRA = {
+        0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+        3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+    private static final int[] DIST_BASE = {
+        1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+        257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+    };
+    private static final int[] DIST_EXTRA = {
+        0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+        7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+    };
+    private static final int[] CODELEN_ORDER = {
+        16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+    };
+    
+    private static final int[] FIXED_LITLEN = new int[LITLEN_TABLE_SIZE];
+    private static final int[] FIXED_DIST = new int[DIST_TABLE_SIZE];
+    
+    static {
+        int[] lengths = new int[288];
+        Arrays.fill(lengths, 0, 144, 8);
+        Arrays.fill(lengths, 144, 256, 9);
+        Arrays.fill(lengths, 256, 280, 7);
+        Arrays.fill(lengths, 280, 288, 8);
+        try {
+            buildTable(lengths, 0, 288, FIXED_LITLEN, LITLEN_BITS);
+            Arrays.fill(lengths, 0, 32, 5);
+            buildTable(lengths, 0, 32, FIXED_DIST, DIST_BITS);
+        } catch (MalformedBgzipDataException e) {
+            throw new AssertionError(e);
+        }
+    }
+    
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+    
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws MalformedBgzipDataException {
+        State s = states.get();
+        s.src = src;
+        s.in = srcOff;
+        s.end = srcOff + srcLen;
+        s.bitBuffer = 0;
+        s.bitCount = 0;
+        
+        try {
+            int out = dstOff;
+            int outEnd = dstOff + dstLen;
+            boolean last;
+            do {
+                last = s.bits(1) != 0;
+                switch (s.bits(2)) {
+                case 0:
+                    out = s.stored(dst, out, outEnd);
+                    break;
+                case 1:
+                    out = s.huffman(FIXED_LITLEN, FIXED_DIST, dst, dstOff, out, outEnd);
+                    break;
+                case 2:
+                    s.readDynamicTables();
+                    out = s.huffman(s.litlen, s.dist, dst, dstOff, out, outEnd);
+                    break;
+                default:
+                    throw new MalformedBgzipDataException("Wrong compressed data block: invalid block type");
+                }
+                if (s.overrun()) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to decompress");
+                }
+            } while (!last);
+            
+            if (out != outEnd) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: not fully uncompressed");
+            }
+        } finally {
+            s.src = null;
+        }
+    }
+    
+    /**
+     * Builds decoding table of canonical Huffman code with code lengths of <code>n</code> symbols
+     * in <code>lengths[off, off + n)</code>. Entries of unused codes are left {@link #INVALID}.
+     */
+    private static void buildTable(int[] lengths, int off, int n, int[] table, int tableBits)
+            throws MalformedBgzipDataException {
+        int[] count = new int[MAX_CODE_BITS + 1];
+        for (int i = 0; i < n; i++) {
+            count[lengths[off + i]]++;
+        }
+        count[0] = 0;
+        
+        int left = 1;
+        int maxBits = 0;
+        int[] next = new int[MAX_CODE_BITS + 2];
+        for (int len = 1; len <= MAX_CODE_BITS; len++) {
+            left = (left << 1) - count[len];
+            if (left < 0) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: over-subscribed Huffman code");
+            }
+            if (count[len] > 0) {
+                maxBits = len;
+            }
+            next[len + 1] = next[len] + count[len];
+        }
+        
+        // symbols sorted by code length, then by symbol value, which is the order of canonical codes
+        int[] sorted = new int[n];
+        for (int i = 0; i < n; i++) {
+            int len = lengths[off + i];
+            if (len > 0) {
+                sorted[next[len]++] = i;
+            }
+        }
+        
+        int primarySize = 1 << tableBits;
+        int subtableBits = Math.max(maxBits - tableBits, 0);
+        int nextSubtable = primarySize;
+        Arrays.fill(table, 0, primarySize, INVALID);
+        
+        int code = 0;
+        int k = 0;
+        for (int len = 1; len <= maxBits; len++) {
+            for (int j = 0; j < count[len]; j++) {
+                int symbol = sorted[k++];
+                // codes are packed starting from most significant bit
+                int reversed = Integer.reverse(code++) >>> (32 - len);
+                if (len <= tableBits) {
+                    int entry = symbol << 16 | len;
+                    for (int r = reversed; r < primarySize; r += 1 << len) {
+                        table[r] = entry;
+                    }
+                } else {
+                    int prefix = reversed & (primarySize - 1);
+                    int pointer = table[prefix];
+                    if ((pointer & SUBTABLE) == 0) {
+                        pointer = SUBTABLE | nextSubtable << 4 | subtableBits;
+                        table[prefix] = pointer;
+                        Arrays.fill(table, nextSubtable, nextSubtable + (1 << subtableBits), INVALID);
+                        nextSubtable += 1 << subtableBits;
+                    }
+                    int start = (pointer & ~SUBTABLE) >>> 4;
+                    int subLen = len - tableBits;
+                    int entry = symbol << 16 | subLen;
+                    for (int r = reversed >>> tableBits; r < 1 << subtableBits; r += 1 << subLen) {
+                        table[start + r] = entry;
+                    }
+                }
+            }
+            code <<= 1;
+        }
+    }
+    
+    /**
+     * Per thread decoding state
+     */
+    private static class State {
+        byte[] src;
+        int in;
+        int end;
+        long bitBuffer;
+        int bitCount;
+        
+        final int[] lengths = new int[288 + 32];
+        final int[] codelen = new int[1 << CODELEN_BITS];
+        final int[] litlen = new int[LITLEN_TABLE_SIZE];
+        final int[] dist = new int[DIST_TABLE_SIZE];
+        
+        /**
+         * Fills bit buffer up to at least 57 bits. Bytes beyond the end of input are read as zeros,
+         * consuming them is detected by {@link #overrun()}.
+         */
+        void refill() {
+            while (bitCount <= 56) {
+                bitBuffer |= (long) (in < end ? src[in] & 0xff : 0) << bitCount;
+                in++;
+                bitCount += 8;
+            }
+        }
+        
+        /**
+         * Whether bits beyond the end of input are consumed
+         */
+        boolean overrun() {
+            return (long) (in - end) * 8 > bitCount;
+        }
+        
+        int bits(int n) {
+            if (bitCount < n) {
+                refill();
+            }
+            int value = (int) bitBuffer & ((1 << n) - 1);
+            bitBuffer >>>= n;
+            bitCount -= n;
+            return value;
+        }
+        
+        int decode(int[] table, int tableBits) throws MalformedBgzipDataException {
+            if (bitCount < MAX_CODE_BITS) {
+                refill();
+            }
+            int entry = table[(int) bitBuffer & ((1 << tableBits) - 1)];
+            if ((entry & SUBTABLE) != 0) {
+                bitBuffer >>>= tableBits;
+                bitCount -= tableBits;
+                entry = table[((entry & ~SUBTABLE) >>> 4) + ((int) bitBuffer & ((1 << (entry & 0xf)) - 1))];
+            }
+            if (entry < 0) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: invalid Huffman code");
+            }
+            bitBuffer >>>= entry & 0xf;
+            bitCount -= entry & 0xf;
+            return entry >>> 16;
+        }
+        
+        /**
+         * Copies a stored block into <code>dst</code>
+         */
+        int stored(byte[] dst, int out, int outEnd) throws MalformedBgzipDataException {
+            // skip to byte boundary, and give back buffered whole bytes
+            bitCount -= bitCount & 7;
+            in -= bitCount >>> 3;
+            bitBuffer = 0;
+            bitCount = 0;
+            
+            if (in + 4 > end) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to decompress");
+            }
+            int len = (src[in] & 0xff) | (src[in + 1] & 0xff) << 8;
+            int nlen = (src[in + 2] & 0xff) | (src[in + 3] & 0xff) << 8;
+            in += 4;
+            if (len != (~nlen & 0xffff)) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: invalid stored block lengths");
+            }
+            if (len > end - in) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to decompress");
+            }
+            if (len > outEnd - out) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: uncompressed data exceeds ISIZE");
+            }
+            System.arraycopy(src, in, dst, out, len);
+            in += len;
+            return out + len;
+        }
+        
+        /**
+         * Reads code lengths of a dynamic Huffman block, and builds {@link #litlen} and {@link #dist} tables
+         */
+        void readDynamicTables() throws MalformedBgzipDataException {
+            int nlitlen = bits(5) + 257;
+            int ndist = bits(5) + 1;
+            int ncodelen = bits(4) + 4;
+            if (nlitlen > 286 || ndist > 30) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: too many length or distance symbols");
+            }
+            
+            Arrays.fill(lengths, 0, 19, 0);
+            for (int i = 0; i < ncodelen; i++) {
+                lengths[CODELEN_ORDER[i]] = bits(3);
+            }
+            buildTable(lengths, 0, 19, codelen, CODELEN_BITS);
+            
+            int total = nlitlen + ndist;
+            for (int n = 0; n < total; ) {
+                int symbol = decode(codelen, CODELEN_BITS);
+                if (symbol < 16) {
+                    lengths[n++] = symbol;
+                    continue;
+                }
+                
+                int len = 0;
+                int repeat;
+                if (symbol == 16) {
+                    if (n == 0) {
+                        throw new MalformedBgzipDataException("Wrong compressed data block: repeated code length without previous one");
+                    }
+                    len = lengths[n - 1];
+                    repeat = 3 + bits(2);
+                } else if (symbol == 17) {
+                    repeat = 3 + bits(3);
+                } else {
+                    repeat = 11 + bits(7);
+                }
+                if (repeat > total - n) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: too many code lengths");
+                }
+                Arrays.fill(lengths, n, n + repeat, len);
+                n += repeat;
+            }
+            if (lengths[256] == 0) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: missing end-of-block code");
+            }
+            
+            buildTable(lengths, 0, nlitlen, litlen, LITLEN_BITS);
+            buildTable(lengths, nlitlen, ndist, dist, DIST_BITS);
+        }
+        
+        /**
+         * Decodes a Huffman block into <code>dst</code>, where uncompressed data of the whole block
+         * starts from <code>outStart</code>
+         */
+        int huffman(int[] litlen, int[] dist, byte[] dst, int outStart, int out, int outEnd)
+                throws MalformedBgzipDataException {
+            byte[] src = this.src;
+            int in = this.in;
+            int end = this.end;
+            long bitBuffer = this.bitBuffer;
+            int bitCount = this.bitCount;
+            
+            while (true) {
+                // 48 bits is enough for a length/distance pair: 15 + 5 + 15 + 13
+                if (bitCount < 48) {
+                    if (end - in >= 8) {
+                        // branch free refill of whole bytes, leaving 56 to 63 bits in buffer
+                        bitBuffer |= ((src[in] & 0xffL) | (src[in + 1] & 0xffL) << 8 | (src[in + 2] & 0xffL) << 16
+                                | (src[in + 3] & 0xffL) << 24 | (src[in + 4] & 0xffL) << 32 | (src[in + 5] & 0xffL) << 40
+                                | (src[in + 6] & 0xffL) << 48 | (src[in + 7] & 0xffL) << 56) << bitCount;
+                        in += (63 - bitCount) >>> 3;
+                        bitCount |= 56;
+                    } else {
+                        while (bitCount <= 56) {
+                            bitBuffer |= (long) (in < end ? src[in] & 0xff : 0) << bitCount;
+                            in++;
+                            bitCount += 8;
+                        }
+                    }
+                }
+                
+                int entry = litlen[(int) bitBuffer & ((1 << LITLEN_BITS) - 1)];
+                if (entry >>> 16 < 256) {
+                    // fast path of literals resolved by primary table, another one fits in remaining bits
+                    bitBuffer >>>= entry & 0xf;
+                    bitCount -= entry & 0xf;
+                    if (out >= outEnd) {
+                        throw new MalformedBgzipDataException("Wrong compressed data block: uncompressed data exceeds ISIZE");
+                    }
+                    dst[out++] = (byte) (entry >>> 16);
+                    entry = litlen[(int) bitBuffer & ((1 << LITLEN_BITS) - 1)];
+                    if (entry >>> 16 >= 256) {
+                        continue;
+                    }
+                    bitBuffer >>>= entry & 0xf;
+                    bitCount -= entry & 0xf;
+                    if (out >= outEnd) {
+                        throw new MalformedBgzipDataException("Wrong compressed data block: uncompressed data exceeds ISIZE");
+                    }
+                    dst[out++] = (byte) (entry >>> 16);
+                    continue;
+                }
+                if ((entry & SUBTABLE) != 0) {
+                    bitBuffer >>>= LITLEN_BITS;
+                    bitCount -= LITLEN_BITS;
+                    entry = litlen[((entry & ~SUBTABLE) >>> 4) + ((int) bitBuffer & ((1 << (entry & 0xf)) - 1))];
+                }
+                if (entry < 0) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: invalid Huffman code");
+                }
+                bitBuffer >>>= entry & 0xf;
+                bitCount -= entry & 0xf;
+                int symbol = entry >>> 16;
+                
+                if (symbol < 256) {
+                    if (out >= outEnd) {
+                        throw new MalformedBgzipDataException("Wrong compressed data block: uncompressed data exceeds ISIZE");
+                    }
+                    dst[out++] = (byte) symbol;
+                    continue;
+                }
+                if (symbol == 256) {
+                    break;
+                }
+                
+                symbol -= 257;
+                if (symbol >= 29) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: invalid length symbol");
+                }
+                int extra = LENGTH_EXTRA[symbol];
+                int length = LENGTH_BASE[symbol] + ((int) bitBuffer & ((1 << extra) - 1));
+                bitBuffer >>>= extra;
+                bitCount -= extra;
+                
+                entry = dist[(int) bitBuffer & ((1 << DIST_BITS) - 1)];
+                if ((entry & SUBTABLE) != 0) {
+                    bitBuffer >>>= DIST_BITS;
+                    bitCount -= DIST_BITS;
+                    entry = dist[((entry & ~SUBTABLE) >>> 4) + ((int) bitBuffer & ((1 << (entry & 0xf)) - 1))];
+                }
+                if (entry < 0) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: invalid Huffman code");
+                }
+                bitBuffer >>>= entry & 0xf;
+                bitCount -= entry & 0xf;
+                symbol = entry >>> 16;
+                if (symbol >= 30) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: invalid distance symbol");
+                }
+                extra = DIST_EXTRA[symbol];
+                int distance = DIST_BASE[symbol] + ((int) bitBuffer & ((1 << extra) - 1));
+                bitBuffer >>>= extra;
+                bitCount -= extra;
+                
+                if (distance > out - outStart) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: distance too far back");
+                }
+                if (length > outEnd - out) {
+                    throw new MalformedBgzipDataException("Wrong compressed data block: uncompressed data exceeds ISIZE");
+                }
+                // Overlapping copy repeats the last distance bytes. Copied bytes repeat them as well, 
+                // so the pattern is copied in chunks doubling in size.
+                int from = out - distance;
+                while (length > 0) {
+                    int n = Math.min(out - from, length);
+                    System.arraycopy(dst, from, dst, out, n);
+                    out += n;
+                    length -= n;
+                }
+            }
+            
+            this.in = in;
+            this.bitBuffer = bitBuffer;
+            this.bitCount = bitCount;
+            return out;
+        }
+    }
+    
+}
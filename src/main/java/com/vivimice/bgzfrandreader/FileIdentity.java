@@ -0,0 +1,47 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>Identifies content of a file by its canonical path, size and last modified time, 
+ * used as file key of {@link BgzipBlockCache}.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+final class FileIdentity {
+    
+    private final String path;
+    private final long length;
+    private final long lastModified;
+    
+    private FileIdentity(String path, long length, long lastModified) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+    
+    static FileIdentity of(File file) throws IOException {
+        return new FileIdentity(file.getCanonicalPath(), file.length(), file.lastModified());
+    }
+    
+    @Override
+    public int hashCode() {
+        return path.hashCode() * 31 + (int) (length ^ lastModified);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FileIdentity)) {
+            return false;
+        }
+        FileIdentity other = (FileIdentity) obj;
+        return path.equals(other.path) && length == other.length && lastModified == other.lastModified;
+    }
+    
+    @Override
+    public String toString() {
+        return path;
+    }
+    
+}
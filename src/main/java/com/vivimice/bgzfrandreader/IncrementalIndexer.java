@@ -0,0 +1,91 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * <p>Builds block index of a BGZF file incrementally, scanning block headers only as far as requested</p>
+ * 
+ * <p>Each extension publishes a new {@link BgzipIndex} covering blocks scanned so far. Snapshots share
+ * arrays with the builder, which only appends beyond their range, so publishing is cheap and snapshots
+ * remain immutable. This class is not thread safe, and it moves position of the underlying channel.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+class IncrementalIndexer {
+    
+    /**
+     * Size of chunks read from channel. Smaller than a full scan's, so that only a few blocks
+     * are read for peeking at the beginning of file.
+     */
+    static final int BUFFER_SIZE = 4 * BgzipBlock.MAX_BLOCK_SIZE;
+    
+    private final BgzipIndex.Builder builder = BgzipIndex.builder();
+    private final BgzipBlockScanner scanner;
+    private BgzipIndex index;
+    private boolean complete = false;
+    
+    IncrementalIndexer(SeekableByteChannel channel, long basePosition) throws IOException {
+        this.scanner = new BgzipBlockScanner(channel, basePosition, BUFFER_SIZE);
+        this.index = builder.snapshot();
+    }
+    
+    /**
+     * Index of blocks scanned so far
+     */
+    BgzipIndex index() {
+        return index;
+    }
+    
+    /**
+     * Whether all blocks are scanned
+     */
+    boolean isComplete() {
+        return complete;
+    }
+    
+    /**
+     * Scans blocks until <code>pos</code> relative to uncompressed data is covered by index,
+     * or all blocks are scanned
+     */
+    BgzipIndex extendTo(long pos) throws IOException, MalformedBgzipDataException {
+        while (!complete && index.getInputLength() <= pos) {
+            scan();
+        }
+        return index;
+    }
+    
+    /**
+     * Scans blocks until the block at <code>blockOffset</code> of compressed file is covered by index,
+     * or all blocks are scanned
+     */
+    BgzipIndex extendToBlock(long blockOffset) throws IOException, MalformedBgzipDataException {
+        while (!complete && (index.getBlockCount() == 0
+                || index.getBlockOffset(index.getBlockCount() - 1) < blockOffset)) {
+            scan();
+        }
+        return index;
+    }
+    
+    /**
+     * Scans all remaining blocks
+     */
+    BgzipIndex complete() throws IOException, MalformedBgzipDataException {
+        while (!complete) {
+            scan();
+        }
+        return index;
+    }
+    
+    private void scan() throws IOException, MalformedBgzipDataException {
+        BgzipBlock block = scanner.next();
+        if (block != null) {
+            builder.add(block);
+            index = builder.snapshot();
+        } else {
+            complete = true;
+            index = builder.build();
+        }
+    }
+    
+}
@@ -0,0 +1,271 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Fetches subsequences of a bgzipped FASTA file indexed by <code>samtools faidx</code></p>
+ * 
+ * <p>Each entry of the <code>.fai</code> index records offset of the sequence in uncompressed data,
+ * bases per line and bytes per line. Positions of bases are computed from them, so line terminators
+ * are skipped without being read, and only blocks covering the requested window are decompressed.</p>
+ * 
+ * <p>Example:</p>
+ * <pre>
+ * try (IndexedFastaReader reader = new IndexedFastaReader(new File("hg38.fa.gz"))) {
+ *     String sequence = reader.fetch("chr1:10001-10100");
+ * }
+ * </pre>
+ * 
+ * <p><b>WARNING: This class is not thread safe.</b></p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see http://www.htslib.org/doc/faidx.html
+ */
+public class IndexedFastaReader implements Closeable, AutoCloseable {
+    
+    private final RandomAccessBgzFile file;
+    private final Map<String, Entry> entries;
+    private final List<String> sequenceNames;
+    
+    /**
+     * <p>Constructs an IndexedFastaReader reading <code>fastaFile</code>, using FASTA index in
+     * <code>fastaFile.fai</code>, and block index in <code>fastaFile.gzi</code>, which is built
+     * and saved if absent as {@link RandomAccessBgzFile#open(File)} does.</p>
+     * 
+     * @param fastaFile
+     * @throws IOException If I/O error occurs, or FASTA index is malformed
+     * @throws FileNotFoundException If <code>fastaFile</code> or its index is not a valid file
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     * @throws NullPointerException If <code>fastaFile</code> is <code>null</code>
+     */
+    public IndexedFastaReader(File fastaFile) throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        this(RandomAccessBgzFile.open(fastaFile), new File(fastaFile.getPath() + ".fai"));
+    }
+    
+    /**
+     * <p>Constructs an IndexedFastaReader reading <code>file</code>, using FASTA index in
+     * <code>faiFile</code>.</p>
+     * 
+     * <p>Note: <code>file</code> is closed when calling {@link #close()} method, even if this
+     * constructor fails.</p>
+     * 
+     * @param file
+     * @param faiFile
+     * @throws IOException If I/O error occurs, or FASTA index is malformed
+     * @throws FileNotFoundException If <code>faiFile</code> is not a valid file
+     * @throws NullPointerException If <code>file</code> or <code>faiFile</code> is <code>null</code>
+     */
+    public IndexedFastaReader(RandomAccessBgzFile file, File faiFile) throws IOException, FileNotFoundException {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        this.file = file;
+        
+        Map<String, Entry> entries = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(faiFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                Entry entry;
+                try {
+                    entry = new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            Integer.parseInt(fields[3]), Integer.parseInt(fields[4]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException(String.format("Malformed FASTA index line: %s", line), e);
+                }
+                if (entry.length < 0 || entry.offset < 0 || entry.lineBases <= 0 || entry.lineWidth < entry.lineBases) {
+                    throw new IOException(String.format("Malformed FASTA index line: %s", line));
+                }
+                entries.put(fields[0], entry);
+                names.add(fields[0]);
+            }
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        this.entries = entries;
+        this.sequenceNames = Collections.unmodifiableList(names);
+    }
+    
+    /**
+     * <p>Gets names of sequences in FASTA index, in the order of the index</p>
+     * 
+     * @return Unmodifiable list of sequence names
+     */
+    public List<String> getSequenceNames() {
+        return sequenceNames;
+    }
+    
+    /**
+     * <p>Gets length of sequence <code>name</code></p>
+     * 
+     * @param name
+     * @return Length of sequence, or -1 if <code>name</code> is not in FASTA index
+     */
+    public long getSequenceLength(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.length : -1;
+    }
+    
+    /**
+     * <p>Fetches subsequence of <code>region</code>, in the form of <code>name</code>,
+     * <code>name:begin</code> or <code>name:begin-end</code> as accepted by <code>samtools faidx</code>.
+     * Coordinates are 1-based and inclusive.</p>
+     * 
+     * @param region
+     * @return Bases of the region, truncated at the end of sequence
+     * @throws IOException If I/O error occurs
+     * @throws IllegalArgumentException If <code>region</code> can't be parsed, its sequence is not in FASTA index,
+     *         or it's longer than an array can hold
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public String fetch(String region) throws IOException, MalformedBgzipDataException {
+        String name = region;
+        long beg = 0;
+        long end = Long.MAX_VALUE;
+        int colon = region.lastIndexOf(':');
+        if (!entries.containsKey(region) && colon >= 0) {
+            name = region.substring(0, colon);
+            String range = region.substring(colon + 1).replace(",", "");
+            try {
+                int dash = range.indexOf('-');
+                beg = Math.max(Long.parseLong(dash < 0 ? range : range.substring(0, dash)) - 1, 0);
+                if (dash >= 0 && dash < range.length() - 1) {
+                    end = Long.parseLong(range.substring(dash + 1));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Bad region %s", region), e);
+            }
+        }
+        return new String(fetch(name, beg, end), StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * <p>Fetches bases <code>[beg, end)</code> of sequence <code>name</code>. Coordinates are 0-based, half-open.</p>
+     * 
+     * @param name Sequence name
+     * @param beg 0-based begin of region, inclusive
+     * @param end 0-based end of region, exclusive
+     * @return Bases of the region, truncated at the end of sequence
+     * @throws IOException If I/O error occurs
+     * @throws IllegalArgumentException If <code>name</code> is not in FASTA index, or the region is longer 
+     *         than an array can hold
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public byte[] fetch(String name, long beg, long end) throws IOException, MalformedBgzipDataException {
+        Entry entry = entry(name);
+        beg = Math.max(beg, 0);
+        end = Math.min(end, entry.length);
+        if (end - beg > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Region %s:%d-%d too large", name, beg + 1, end));
+        }
+        byte[] b = new byte[(int) Math.max(end - beg, 0)];
+        fetch(entry, beg, b, 0, b.length);
+        return b;
+    }
+    
+    /**
+     * <p>Fetches up to <code>len</code> bases of sequence <code>name</code> starting from <code>beg</code>
+     * into <code>b</code> starting from <code>off</code>. Coordinates are 0-based.</p>
+     * 
+     * @param name Sequence name
+     * @param beg 0-based begin of region
+     * @param b The buffer into which the bases will read
+     * @param off The start offset in array b at which the bases are written.
+     * @param len The maximum number of bases read
+     * @return Number of bases read, less than <code>len</code> if end of sequence is reached
+     * @throws IOException If I/O error occurs
+     * @throws IllegalArgumentException If <code>name</code> is not in FASTA index, or <code>beg</code> is negative
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public int fetch(String name, long beg, byte[] b, int off, int len) throws IOException, MalformedBgzipDataException {
+        if (b == null) {
+            throw new NullPointerException();
+        }
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (beg < 0) {
+            throw new IllegalArgumentException(String.format("Negative position %d", beg));
+        }
+        Entry entry = entry(name);
+        len = (int) Math.max(Math.min(len, entry.length - beg), 0);
+        fetch(entry, beg, b, off, len);
+        return len;
+    }
+    
+    private Entry entry(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException(String.format("Sequence %s not found", name));
+        }
+        return entry;
+    }
+    
+    /**
+     * Reads bases line by line, uncompressed offset of each base is computed from line layout
+     */
+    private void fetch(Entry entry, long beg, byte[] b, int off, int len) throws IOException, MalformedBgzipDataException {
+        while (len > 0) {
+            long line = beg / entry.lineBases;
+            int column = (int) (beg % entry.lineBases);
+            int cb = Math.min(len, entry.lineBases - column);
+            
+            file.seek(entry.offset + line * entry.lineWidth + column);
+            for (int read = 0; read < cb; ) {
+                int n = file.read(b, off + read, cb - read);
+                if (n < 0) {
+                    throw new EOFException("Sequence is truncated");
+                }
+                read += n;
+            }
+            
+            beg += cb;
+            off += cb;
+            len -= cb;
+        }
+    }
+    
+    /**
+     * <p>Closes the FASTA file</p>
+     * 
+     * @throws IOException If I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+    
+    private static class Entry {
+        final long length;
+        final long offset;
+        final int lineBases;
+        final int lineWidth;
+        
+        Entry(long length, long offset, int lineBases, int lineWidth) {
+            this.length = length;
+            this.offset = offset;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+    }
+    
+}
@@ -0,0 +1,86 @@
+package com.vivimice.bgzfrandreader;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>Bounded pool of decompressors shared by all readers</p>
+ * 
+ * <p>Readers borrow a decompressor for each block instead of owning one, so native memory held by
+ * zlib is capped by capacity of the pool, no matter how many files are open, and no native state
+ * is initialized or released per reader. Each thread prefers the decompressor it borrowed last,
+ * which is usually free, so borrowing doesn't contend with other threads. If all decompressors are
+ * in use, a temporary one is created and released right after use.</p>
+ * 
+ * <p>This class is thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+final class InflaterPool {
+    
+    /**
+     * Pool shared by all readers
+     */
+    static final InflaterPool SHARED = new InflaterPool(2 * Runtime.getRuntime().availableProcessors());
+    
+    private final AtomicReferenceArray<PooledInflater> inflaters;
+    private final AtomicInteger created = new AtomicInteger();
+    private final ThreadLocal<PooledInflater> preferred = new ThreadLocal<>();
+    
+    InflaterPool(int capacity) {
+        this.inflaters = new AtomicReferenceArray<>(capacity);
+    }
+    
+    /**
+     * Borrows a decompressor, which must be given back by {@link #release(BgzipBlockInflater)}
+     */
+    BgzipBlockInflater borrow() {
+        PooledInflater inflater = preferred.get();
+        if (inflater != null && inflater.acquire()) {
+            return inflater;
+        }
+        
+        int count = created.get();
+        for (int i = 0; i < count; i++) {
+            inflater = inflaters.get(i);
+            if (inflater != null && inflater.acquire()) {
+                preferred.set(inflater);
+                return inflater;
+            }
+        }
+        
+        while ((count = created.get()) < inflaters.length()) {
+            if (created.compareAndSet(count, count + 1)) {
+                inflater = new PooledInflater();
+                inflater.acquire();
+                inflaters.set(count, inflater);
+                preferred.set(inflater);
+                return inflater;
+            }
+        }
+        
+        // pool exhausted
+        return new BgzipBlockInflater();
+    }
+    
+    /**
+     * Gives back a decompressor borrowed from this pool
+     */
+    void release(BgzipBlockInflater inflater) {
+        if (inflater instanceof PooledInflater) {
+            ((PooledInflater) inflater).inUse.set(false);
+        } else {
+            inflater.end();
+        }
+    }
+    
+    private static class PooledInflater extends BgzipBlockInflater {
+        final AtomicBoolean inUse = new AtomicBoolean(false);
+        
+        boolean acquire() {
+            return !inUse.get() && inUse.compareAndSet(false, true);
+        }
+    }
+    
+}
@@ -0,0 +1,141 @@
+package com.vivimice.bgzfrandreader;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * <p>A {@link BgzipBlockCache} bounded by total bytes of cached data, 
+ * evicting least recently used blocks first.</p>
+ * 
+ * <p>This class is thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+public class LruBgzipBlockCache implements BgzipBlockCache {
+    
+    /**
+     * Estimated heap overhead of each cache entry, besides block data
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+    
+    private final long capacity;
+    private final LinkedHashMap<BlockKey, byte[]> blocks = new LinkedHashMap<>(16, 0.75f, true);
+    
+    private long size = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    
+    /**
+     * <p>Constructs a LruBgzipBlockCache instance</p>
+     * 
+     * @param capacity Maximum bytes of cached data
+     * @throws IllegalArgumentException If <code>capacity</code> is negative
+     */
+    public LruBgzipBlockCache(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException(String.format("Negative capacity %d", capacity));
+        }
+        this.capacity = capacity;
+    }
+    
+    @Override
+    public synchronized byte[] get(Object fileKey, long blockOffset) {
+        byte[] data = blocks.get(new BlockKey(fileKey, blockOffset));
+        if (data != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return data;
+    }
+    
+    @Override
+    public synchronized void put(Object fileKey, long blockOffset, byte[] data) {
+        long entrySize = data.length + ENTRY_OVERHEAD;
+        if (entrySize > capacity) {
+            return;
+        }
+        
+        byte[] previous = blocks.put(new BlockKey(fileKey, blockOffset), data);
+        if (previous != null) {
+            size -= previous.length + ENTRY_OVERHEAD;
+        }
+        size += entrySize;
+        
+        // evict least recently used blocks
+        Iterator<Entry<BlockKey, byte[]>> it = blocks.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().getValue().length + ENTRY_OVERHEAD;
+            it.remove();
+        }
+    }
+    
+    /**
+     * <p>Removes all blocks from this cache</p>
+     */
+    public synchronized void clear() {
+        blocks.clear();
+        size = 0;
+    }
+    
+    /**
+     * @return Maximum bytes of cached data
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * @return Estimated bytes of cached data
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * @return Number of cached blocks
+     */
+    public synchronized int getBlockCount() {
+        return blocks.size();
+    }
+    
+    /**
+     * @return Number of {@link #get(Object, long)} calls returning cached data
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+    
+    /**
+     * @return Number of {@link #get(Object, long)} calls returning <code>null</code>
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+    
+    private static final class BlockKey {
+        final Object fileKey;
+        final long blockOffset;
+        
+        BlockKey(Object fileKey, long blockOffset) {
+            this.fileKey = fileKey;
+            this.blockOffset = blockOffset;
+        }
+        
+        @Override
+        public int hashCode() {
+            return fileKey.hashCode() * 31 + (int) (blockOffset ^ (blockOffset >>> 32));
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) obj;
+            return blockOffset == other.blockOffset && fileKey.equals(other.fileKey);
+        }
+    }
+    
+}
@@ -0,0 +1,56 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * <p>Read only memory mapping of a whole file</p>
+ * 
+ * <p>A single {@link java.nio.MappedByteBuffer} can't exceed 2GB, so the file is mapped in 1GB segments. 
+ * Adjacent segments overlap by the maximum BGZF block size, so that any block lies entirely in one segment 
+ * and can be copied out with a single bulk get.</p>
+ * 
+ * <p>Mapped memory is released when this object is garbage collected, closing the channel doesn't unmap it.</p>
+ * 
+ * <p>This class is thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+class MappedFileRegion {
+    
+    private static final long SEGMENT_SIZE = 1L << 30;
+    
+    private final long size;
+    private final ByteBuffer[] segments;
+    
+    MappedFileRegion(FileChannel channel) throws IOException {
+        this.size = channel.size();
+        this.segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int k = 0; k < segments.length; k++) {
+            long start = k * SEGMENT_SIZE;
+            long length = Math.min(SEGMENT_SIZE + BgzipBlock.MAX_BLOCK_SIZE, size - start);
+            segments[k] = channel.map(MapMode.READ_ONLY, start, length);
+        }
+    }
+    
+    /**
+     * Copies <code>len</code> bytes at <code>position</code> of file into <code>dst</code>, 
+     * <code>len</code> must not exceed maximum BGZF block size.
+     * 
+     * @throws EOFException If end of file is reached before <code>len</code> bytes are copied
+     */
+    void read(long position, byte[] dst, int off, int len) throws EOFException {
+        if (position < 0 || position + len > size) {
+            throw new EOFException();
+        }
+        int k = (int) (position / SEGMENT_SIZE);
+        ByteBuffer segment = segments[k].duplicate();
+        ((Buffer) segment).position((int) (position - k * SEGMENT_SIZE));
+        segment.get(dst, off, len);
+    }
+    
+}
@@ -0,0 +1,264 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <p>Builds block index of a BGZF file by scanning parts of the compressed file in parallel</p>
+ * 
+ * <p>The file is split into byte ranges of about equal size. Each part but the first resynchronizes
+ * on the first block header within its range, recognized by gzip magic <code>1f 8b 08 04</code> with
+ * a <code>BC</code> extra subfield, and confirmed by another header right after the block. Then blocks
+ * are scanned sequentially until the chain of blocks leaves the range.</p>
+ * 
+ * <p>Since compressed data may happen to look like a block header, parts are merged in order only if
+ * each one starts exactly where the chain of its predecessor leaves off. Otherwise the part is scanned
+ * again from there, as a sequential scan would do, so the result is always identical to
+ * {@link BgzipIndex#scan(java.nio.channels.SeekableByteChannel)}.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ */
+class ParallelIndexer {
+    
+    /**
+     * Minimum size of compressed data scanned by each part
+     */
+    static final long MIN_PART_SIZE = 2L * BgzipBlockScanner.DEFAULT_BUFFER_SIZE;
+    
+    /**
+     * Size of chunks read by each part, smaller than sequential scan's, since parts run simultaneously
+     */
+    private static final int BUFFER_SIZE = BgzipBlockScanner.DEFAULT_BUFFER_SIZE / 4;
+    
+    private final FileChannel channel;
+    private final long basePosition;
+    private final long size;
+    
+    ParallelIndexer(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.basePosition = channel.position();
+        this.size = Math.max(channel.size() - basePosition, 0);
+    }
+    
+    /**
+     * Scans all parts, the last part is scanned by calling thread
+     */
+    BgzipIndex scan(Executor executor) throws IOException, MalformedBgzipDataException {
+        int partCount = (int) Math.max(Math.min(size / MIN_PART_SIZE, 2L * Runtime.getRuntime().availableProcessors()), 1);
+        final long[] bounds = new long[partCount + 1];
+        for (int k = 0; k <= partCount; k++) {
+            bounds[k] = size / partCount * k;
+        }
+        bounds[partCount] = size;
+        
+        List<FutureTask<Part>> tasks = new ArrayList<>();
+        for (int k = 0; k < partCount; k++) {
+            final int part = k;
+            FutureTask<Part> task = new FutureTask<>(new Callable<Part>() {
+                @Override
+                public Part call() throws Exception {
+                    long from = bounds[part];
+                    while (true) {
+                        long start = part == 0 ? 0 : sync(from, bounds[part + 1]);
+                        if (start < 0) {
+                            return null;
+                        }
+                        try {
+                            return scanPart(start, bounds[part + 1]);
+                        } catch (MalformedBgzipDataException e) {
+                            if (part == 0) {
+                                // malformed data, reported while merging
+                                return null;
+                            }
+                            // started from a fake header, try the next one
+                            from = start + 1;
+                        }
+                    }
+                }
+            });
+            tasks.add(task);
+            if (k + 1 < partCount) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    task.run();
+                }
+            } else {
+                task.run();
+            }
+        }
+        
+        List<Part> parts = await(tasks);
+        
+        // Merge parts along the chain of blocks, rescan parts not starting where the chain goes
+        BgzipIndex.Builder builder = BgzipIndex.builder();
+        long expected = 0;
+        for (int k = 0; k < partCount; k++) {
+            if (expected >= bounds[k + 1]) {
+                // no block starts within this range
+                continue;
+            }
+            Part part = parts.get(k);
+            if (part == null || part.start != expected) {
+                part = scanPart(expected, bounds[k + 1]);
+            }
+            for (int i = 0; i < part.blocks.getBlockCount(); i++) {
+                builder.add(part.blocks.getBlockOffset(i), part.blocks.getBlockSize(i), part.blocks.getInputLength(i));
+            }
+            if (part.eof) {
+                return builder.build();
+            }
+            expected = part.end;
+        }
+        
+        // chain runs out of data without EOF marker block
+        throw new MalformedBgzipDataException("Header is broken");
+    }
+    
+    private static List<Part> await(List<FutureTask<Part>> tasks) throws IOException {
+        List<Part> parts = new ArrayList<>();
+        Throwable failure = null;
+        boolean interrupted = false;
+        for (FutureTask<Part> task : tasks) {
+            Part part = null;
+            while (true) {
+                try {
+                    part = task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+            parts.add(part);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+        return parts;
+    }
+    
+    /**
+     * Scans blocks from <code>start</code>, until the chain of blocks leaves <code>[start, end)</code>
+     */
+    private Part scanPart(long start, long end) throws IOException, MalformedBgzipDataException {
+        BgzipBlockScanner scanner = new BgzipBlockScanner(channel, basePosition + start, BUFFER_SIZE);
+        BgzipIndex.Builder builder = BgzipIndex.builder();
+        Part part = new Part(start);
+        while (true) {
+            long offset = start + scanner.position();
+            if (offset >= end) {
+                part.end = offset;
+                break;
+            }
+            BgzipBlock block = scanner.next();
+            if (block == null) {
+                part.eof = true;
+                break;
+            }
+            builder.add(start + block.getBlockOffset(), block.getBlockSize(), block.getInputLength());
+        }
+        part.blocks = builder.build();
+        return part;
+    }
+    
+    /**
+     * Finds the first block header within <code>[start, end)</code>. Blocks are at most
+     * {@link BgzipBlock#MAX_BLOCK_SIZE} bytes, so a header must appear within that many bytes,
+     * with the next header following it within another.
+     * 
+     * @return Offset of block header, or -1 if not found
+     */
+    private long sync(long start, long end) throws IOException {
+        int length = (int) Math.min(2L * BgzipBlock.MAX_BLOCK_SIZE + 4, size - start);
+        ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, basePosition + start + bb.position()) < 0) {
+                break;
+            }
+        }
+        
+        int limit = bb.position();
+        int last = (int) Math.min(Math.min(BgzipBlock.MAX_BLOCK_SIZE, end - start), limit);
+        for (int p = 0; p < last; p++) {
+            int blockSize = blockSize(bb, p, limit);
+            if (blockSize < 0) {
+                continue;
+            }
+            long next = start + p + blockSize;
+            if (next == size || (p + blockSize + 4 <= limit && bb.getInt(p + blockSize) == 0x04088b1f)) {
+                return start + p;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Parses block header at <code>p</code> of <code>bb</code>, returns block size, or -1 if not a header
+     */
+    private static int blockSize(ByteBuffer bb, int p, int limit) {
+        if (p + 12 > limit || bb.getInt(p) != 0x04088b1f) {
+            return -1;
+        }
+        int xlen = bb.getShort(p + 10) & 0xffff;
+        if (p + 12 + xlen > limit) {
+            return -1;
+        }
+        for (int q = p + 12; q + 4 <= p + 12 + xlen; ) {
+            int si = bb.getShort(q) & 0xffff;
+            int slen = bb.getShort(q + 2) & 0xffff;
+            if (si == 0x4342 && slen == 2 && q + 6 <= p + 12 + xlen) {
+                int bSize = bb.getShort(q + 4) & 0xffff;
+                return bSize - xlen - 19 >= 0 ? bSize + 1 : -1;
+            }
+            q += 4 + slen;
+        }
+        return -1;
+    }
+    
+    /**
+     * Blocks scanned by a part
+     */
+    private static class Part {
+        final long start;
+        BgzipIndex blocks;
+        
+        /**
+         * Offset of the first block beyond range of the part
+         */
+        long end = -1;
+        
+        /**
+         * Whether EOF marker block is reached
+         */
+        boolean eof = false;
+        
+        Part(long start) {
+            this.start = start;
+        }
+    }
+    
+}
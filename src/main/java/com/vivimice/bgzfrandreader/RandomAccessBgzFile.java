@@ -1,22 +1,22 @@
 package com.vivimice.bgzfrandreader;
 
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 /**
  * <p>A Random Access BGZF Reader</p>
@@ -28,10 +28,16 @@ import java.util.zip.Inflater;
  * data block, makes random accessing by uncompressed data offset possible. BGZF file can be created by 
  * <code>bgzip</code> command line tool from either uncompressed file or existing .gz file.</p>
  * 
- * <p>Note: Make sure {@link #close()} is called after use. {@link RandomAccessBgzFile} uses {@link Inflater} 
- * to decompress data, which must be closed explicitly. Otherwise unexpected off-heap memory leak may occur.</p>
+ * <p>Note: Make sure {@link #close()} is called after use, otherwise the file will be kept open. Decompressors 
+ * ({@link java.util.zip.Inflater}) are borrowed for each block from a bounded pool shared by all readers, 
+ * so native memory doesn't grow with the number of open files.</p>
  * 
- * <p><b>WARNING: This class is not thread safe.</b> Use with caution when shared with multiple threads.</p>
+ * <p>Building the block index requires walking through all block headers of the file. For large files, 
+ * use {@link #open(File)} to load a samtools compatible <code>.gzi</code> index instead, or build the 
+ * index lazily with {@link Builder#lazyIndex(boolean)}.</p>
+ * 
+ * <p><b>WARNING: This class is not thread safe.</b> Use with caution when shared with multiple threads. 
+ * {@link ConcurrentBgzFile} can be used to read the same file from multiple threads instead.</p>
  * 
  * @author vivimice &lt;vivimice@gmail.com&gt;
  * @see http://samtools.github.io/hts-specs/SAMv1.pdf
@@ -40,16 +46,38 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
 
     private final boolean closeChannelOnClose;
     private final SeekableByteChannel channel;
-    private final NavigableMap<Long, BgzipBlock> blockTree;
-    private final long inputLength;
+    private BgzipIndex index;
+    private long inputLength;
+    private IncrementalIndexer indexer = null;
     private final long basePosition;
-    private final Inflater inflater = new Inflater(true);
+    private final Object fileKey;
+    private final MappedFileRegion mappedFile;
 
     private long pos = 0;
     
+    // Buffers reused by read(), allocated on first read
+    private byte[] compressed = null;
+    private ByteBuffer compressedBuffer = null;
+    private final LocalCache head = new LocalCache();
+    private final LocalCache tail = new LocalCache();
+    
     private LocalCache preceding = null;
     private LocalCache following = null;
     
+    private BgzipBlockCache blockCache = null;
+    private Object blockCacheKey = null;
+    private BlockVerifier verifier = null;
+    private BgzipDecompressor decompressor = BgzipDecompressor.ZLIB;
+    private BgzipMetricsListener metricsListener = null;
+    
+    // Readahead of sequential reads
+    private final Object channelLock = new Object();
+    private int readahead = 0;
+    private int maxCoalescedRead = BgzipBlock.DEFAULT_MAX_COALESCED_READ;
+    private int nextBlock = -1;
+    private int sequentialBlocks = 0;
+    private BlockPrefetcher prefetcher = null;
+    
     /**
      * <p>Constructs a RandomAccessBgzFile instance using existing {@link RandomAccessFile}.</p>
      * 
@@ -82,7 +110,7 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
     @SuppressWarnings("resource")
     public RandomAccessBgzFile(File file) 
             throws IOException, FileNotFoundException, MalformedBgzipDataException {
-        this(new FileInputStream(file).getChannel(), true);
+        this(FileIdentity.of(file), new FileInputStream(file).getChannel(), true, null, false, false);
     }
     
     /**
@@ -123,30 +151,162 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
         this(channel, false);
     }
     
+    /**
+     * <p>Constructs a RandomAccessBgzFile instance using existing {@link File} and its block index.</p>
+     * 
+     * @param file
+     * @param index Block index of <code>file</code>, or <code>null</code> to build it by walking 
+     *        through all block headers of <code>file</code>
+     * @throws IOException If IO error occurs while building index
+     * @throws NullPointerException If <code>file</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     * @throws FileNotFoundException If <code>file</code> is not a valid file
+     * @throws SecurityException If a security manager exists and its checkRead method denies read access to the file.
+     * @see #getIndex()
+     */
+    @SuppressWarnings("resource")
+    public RandomAccessBgzFile(File file, BgzipIndex index) 
+            throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        this(FileIdentity.of(file), new FileInputStream(file).getChannel(), true, index, false, false);
+    }
+    
+    /**
+     * <p>Constructs a RandomAccessBgzFile instance using existing {@link SeekableByteChannel} 
+     * and its block index.</p>
+     * 
+     * <p>Note: Offsets in <code>index</code> are relative to <code>channel</code>'s current position. 
+     * Reading or seeking this RandomAccessBgzFile will affect <code>channel</code>'s position.</p>
+     * 
+     * <p>Note: <code>channel</code> won't be closed when calling {@link #close()} method.</p>
+     * 
+     * @param channel
+     * @param index Block index of <code>channel</code>, or <code>null</code> to build it by walking 
+     *        through all block headers of <code>channel</code>
+     * @throws IOException If IO error occurs while building index
+     * @throws NullPointerException If <code>channel</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     * @see #getIndex()
+     */
+    public RandomAccessBgzFile(SeekableByteChannel channel, BgzipIndex index) 
+            throws IOException, MalformedBgzipDataException {
+        this(null, channel, false, index, false, false);
+    }
+    
     private RandomAccessBgzFile(SeekableByteChannel channel, boolean closeChannelOnClose) 
             throws IOException, MalformedBgzipDataException {
+        this(null, channel, closeChannelOnClose, null, false, false);
+    }
+    
+    private RandomAccessBgzFile(Object fileKey, SeekableByteChannel channel, boolean closeChannelOnClose, 
+            BgzipIndex index, boolean memoryMapped, boolean lazyIndex) throws IOException, MalformedBgzipDataException {
         if (channel == null) {
             throw new NullPointerException();
         }
+        this.fileKey = fileKey != null ? fileKey : channel;
         this.channel = channel;
         this.basePosition = channel.position();
         
-        // Build index
-        NavigableMap<Long, BgzipBlock> blockTree = new TreeMap<>();
-        long inputOffset = 0;
-        while (true) {
-            BgzipBlock block = readBlock();
-            if (block != null) {
-                blockTree.put(inputOffset, block);
-                inputOffset += block.getInputLength();
-            } else {
-                break;
-            }
+        if (index == null && lazyIndex) {
+            // Scan blocks on demand
+            indexer = new IncrementalIndexer(channel, basePosition);
+            index = indexer.index();
+        } else if (index == null) {
+            // Build index
+            index = BgzipIndex.scan(channel);
         }
         
-        this.blockTree = blockTree;
-        this.inputLength = inputOffset;
+        this.index = index;
+        this.inputLength = index.getInputLength();
         this.closeChannelOnClose = closeChannelOnClose;
+        this.mappedFile = memoryMapped ? new MappedFileRegion((FileChannel) channel) : null;
+    }
+    
+    /**
+     * <p>Opens a RandomAccessBgzFile using <code>file</code> and its <code>.gzi</code> index, which is 
+     * expected to be located at the same directory with name <code>file.getName() + ".gzi"</code>.</p>
+     * 
+     * @param file
+     * @return A new {@link RandomAccessBgzFile} instance
+     * @throws IOException If IO error occurs while loading or building index
+     * @throws NullPointerException If <code>file</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     * @throws FileNotFoundException If <code>file</code> is not a valid file
+     * @see #open(File, File)
+     */
+    public static RandomAccessBgzFile open(File file) 
+            throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        return open(file, new File(file.getPath() + ".gzi"));
+    }
+    
+    /**
+     * <p>Opens a RandomAccessBgzFile using <code>file</code> and a samtools compatible 
+     * <code>.gzi</code> index located at <code>indexFile</code>.</p>
+     * 
+     * <p>Block index is loaded from <code>indexFile</code> if it exists and is up to date. Otherwise, 
+     * the index is built by walking through all block headers of <code>file</code> as constructors do, 
+     * and then saved to <code>indexFile</code> for later use. Failing to save the index is not an error, 
+     * since the returned instance is fully functional without it.</p>
+     * 
+     * <p>An index is considered stale if it is older than <code>file</code>, or it doesn't match 
+     * the size and trailing block of <code>file</code>.</p>
+     * 
+     * @param file
+     * @param indexFile
+     * @return A new {@link RandomAccessBgzFile} instance
+     * @throws IOException If IO error occurs while loading or building index
+     * @throws NullPointerException If <code>file</code> or <code>indexFile</code> is <code>null</code>
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     * @throws FileNotFoundException If <code>file</code> is not a valid file
+     */
+    public static RandomAccessBgzFile open(File file, File indexFile) 
+            throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        if (indexFile == null) {
+            throw new NullPointerException();
+        }
+        return builder(file).indexFile(indexFile).build();
+    }
+    
+    /**
+     * <p>Creates a builder of {@link RandomAccessBgzFile} reading <code>file</code>, which allows 
+     * to specify options such as block index and I/O mode.</p>
+     * 
+     * @param file
+     * @return A new builder
+     * @throws NullPointerException If <code>file</code> is <code>null</code>
+     */
+    public static Builder builder(File file) {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        return new Builder(file);
+    }
+    
+    /**
+     * <p>Saves block index of this {@link RandomAccessBgzFile} to <code>indexFile</code> in 
+     * samtools compatible <code>.gzi</code> format.</p>
+     * 
+     * @param indexFile
+     * @throws IOException If I/O error occurs
+     * @throws NullPointerException If <code>indexFile</code> is <code>null</code>
+     */
+    public void saveIndex(File indexFile) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(indexFile))) {
+            saveIndex(out);
+        }
+    }
+    
+    /**
+     * <p>Writes block index of this {@link RandomAccessBgzFile} to <code>out</code> in 
+     * samtools compatible <code>.gzi</code> format.</p>
+     * 
+     * <p>Note: <code>out</code> won't be closed by this method.</p>
+     * 
+     * @param out
+     * @throws IOException If I/O error occurs
+     * @throws NullPointerException If <code>out</code> is <code>null</code>
+     */
+    public void saveIndex(OutputStream out) throws IOException {
+        completeIndex().writeGzi(out);
     }
     
     /**
@@ -156,7 +316,7 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
      * object is undefined.</p>
      * 
      * <p>Make sure this method is called when finish using {@link RandomAccessBgzFile}
-     * object. Otherwise off-heap memory leak may occur.</p>
+     * object. Otherwise the file will be kept open.</p>
      * 
      * <p>Note: This method won't close underlying stream / random access file.</p>
      * 
@@ -164,10 +324,192 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        stopReadahead();
         if (closeChannelOnClose) {
             channel.close();
         }
-        inflater.end();
+    }
+    
+    /**
+     * <p>Gets block index of this {@link RandomAccessBgzFile}</p>
+     * 
+     * <p>The index is immutable, and can be shared with other readers of the same file, 
+     * such as {@link ConcurrentBgzFile}.</p>
+     * 
+     * <p>If the index is built lazily, this method scans all remaining blocks.</p>
+     * 
+     * @return Block index
+     * @throws IllegalStateException If the index is built lazily, and scanning remaining blocks 
+     *         fails with I/O error or malformed data
+     */
+    public BgzipIndex getIndex() {
+        try {
+            return completeIndex();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to build block index", e);
+        }
+    }
+    
+    /**
+     * Scans all remaining blocks if index is built lazily
+     */
+    private BgzipIndex completeIndex() throws IOException, MalformedBgzipDataException {
+        if (indexer != null) {
+            synchronized (channelLock) {
+                updateIndex(indexer.complete());
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Makes sure <code>pos</code> relative to uncompressed data is covered by index, unless 
+     * it's beyond the end of uncompressed data
+     */
+    private void ensureIndexed(long pos) throws IOException, MalformedBgzipDataException {
+        if (indexer != null && pos >= inputLength) {
+            synchronized (channelLock) {
+                updateIndex(indexer.extendTo(pos));
+            }
+        }
+    }
+    
+    private void updateIndex(BgzipIndex index) {
+        this.index = index;
+        this.inputLength = index.getInputLength();
+        if (indexer.isComplete()) {
+            indexer = null;
+        }
+    }
+    
+    /**
+     * <p>Sets block cache shared with other readers.</p>
+     * 
+     * <p>Blocks are identified by path, size and last modified time of the file, if this 
+     * {@link RandomAccessBgzFile} is constructed from {@link File}. Otherwise blocks are identified 
+     * by the underlying channel, thus won't be shared with readers of other channels. 
+     * Use {@link #setBlockCache(BgzipBlockCache, Object)} to identify the file explicitly.</p>
+     * 
+     * @param blockCache Block cache, or <code>null</code> to disable block cache
+     */
+    public void setBlockCache(BgzipBlockCache blockCache) {
+        setBlockCache(blockCache, fileKey);
+    }
+    
+    /**
+     * <p>Sets block cache shared with other readers, with blocks of this file identified by 
+     * <code>fileKey</code>.</p>
+     * 
+     * <p>Readers of the same file should use equal keys, and readers of different files must 
+     * use different keys.</p>
+     * 
+     * @param blockCache Block cache, or <code>null</code> to disable block cache
+     * @param fileKey Identity of the file
+     * @throws NullPointerException If <code>blockCache</code> is not <code>null</code> while 
+     *         <code>fileKey</code> is <code>null</code>
+     */
+    public void setBlockCache(BgzipBlockCache blockCache, Object fileKey) {
+        if (blockCache != null && fileKey == null) {
+            throw new NullPointerException();
+        }
+        this.blockCache = blockCache;
+        this.blockCacheKey = fileKey;
+    }
+    
+    /**
+     * <p>Sets number of blocks to read ahead when sequential reading is detected, 0 disables readahead.</p>
+     * 
+     * <p>When consecutive blocks are read one after another, the following blocks are read and 
+     * decompressed by a background thread, up to <code>blocks</code> blocks ahead of current position, 
+     * so that disk I/O and decompression overlap with processing of data by the caller. Readahead 
+     * stops once a read leaves the sequential run, such as after {@link #seek(long)} to elsewhere.</p>
+     * 
+     * <p>Note: The background thread shares the underlying channel with this {@link RandomAccessBgzFile}, 
+     * so the channel must not be used by others while reading. Readahead is disabled by default.</p>
+     * 
+     * @param blocks Maximum number of blocks decompressed ahead
+     * @throws IllegalArgumentException If <code>blocks</code> is negative
+     */
+    public void setReadahead(int blocks) {
+        if (blocks < 0) {
+            throw new IllegalArgumentException(String.format("Negative readahead %d", blocks));
+        }
+        if (blocks != readahead) {
+            stopReadahead();
+        }
+        this.readahead = blocks;
+    }
+    
+    /**
+     * <p>Sets maximum number of bytes read from the file at once. Compressed data of contiguous blocks 
+     * covered by a read is read in one go up to this size, then decompressed block by block, which turns 
+     * many small reads into a few large ones, saving system calls and round trips of network file systems. 
+     * Values not greater than a block disable coalescing. 1 MiB by default.</p>
+     * 
+     * <p>Reads through memory mapping are never coalesced, as they don't involve system calls.</p>
+     * 
+     * @param bytes Maximum number of bytes read at once
+     * @throws IllegalArgumentException If <code>bytes</code> is negative
+     */
+    public void setMaxCoalescedRead(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException(String.format("Negative read size %d", bytes));
+        }
+        this.maxCoalescedRead = bytes;
+    }
+    
+    /**
+     * <p>Sets whether to verify uncompressed data of blocks against CRC32 and ISIZE in block trailers.</p>
+     * 
+     * <p>Blocks are verified right after being decompressed, a mismatch fails the read with 
+     * {@link MalformedBgzipDataException}. Blocks served from block cache are not verified again. 
+     * Verification is off by default.</p>
+     * 
+     * @param mode Verification mode
+     * @throws NullPointerException If <code>mode</code> is <code>null</code>
+     * @see CrcVerification
+     */
+    public void setCrcVerification(CrcVerification mode) {
+        stopReadahead();
+        this.verifier = BlockVerifier.of(mode, index);
+    }
+    
+    /**
+     * <p>Sets decompressor of block data, {@link BgzipDecompressor#ZLIB} by default. 
+     * {@link BgzipDecompressor#PURE_JAVA} decodes whole blocks in Java, without native memory.</p>
+     * 
+     * @param decompressor
+     * @throws NullPointerException If <code>decompressor</code> is <code>null</code>
+     */
+    public void setDecompressor(BgzipDecompressor decompressor) {
+        if (decompressor == null) {
+            throw new NullPointerException();
+        }
+        stopReadahead();
+        this.decompressor = decompressor;
+    }
+    
+    /**
+     * <p>Sets listener receiving block level metrics of reads, such as blocks decompressed, time spent 
+     * reading and decompressing them, and cache hits. To measure time spent building block index, 
+     * use {@link Builder#metricsListener(BgzipMetricsListener)} instead.</p>
+     * 
+     * <p>Metrics are not measured without a listener. If readahead is enabled, the listener is also 
+     * called from readahead thread.</p>
+     * 
+     * @param listener Metrics listener, or <code>null</code> to disable metrics
+     */
+    public void setMetricsListener(BgzipMetricsListener listener) {
+        stopReadahead();
+        this.metricsListener = listener;
+    }
+    
+    private void stopReadahead() {
+        if (prefetcher != null) {
+            prefetcher.cancel();
+            prefetcher = null;
+        }
+        sequentialBlocks = 0;
     }
     
     /**
@@ -178,12 +520,46 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
      * @see {@link #inputLength()}
      */
     public void seek(long pos) throws IOException {
+        if (pos > 0) {
+            ensureIndexed(pos - 1);
+        }
         if (pos < 0 || pos > inputLength) {
             throw new IOException(String.format("Position %d out of range", pos));
         }
         this.pos = pos;
     }
     
+    /**
+     * <p>Sets this {@link RandomAccessBgzFile}'s file position by BGZF virtual file offset, 
+     * <code>coffset &lt;&lt; 16 | uoffset</code>, as used by BAM and tabix indices.</p>
+     * 
+     * @param virtualOffset
+     * @throws IOException If <code>virtualOffset</code> doesn't address a position of uncompressed data
+     * @see BgzipIndex#toInputOffset(long)
+     */
+    public void seekVirtual(long virtualOffset) throws IOException {
+        if (indexer != null) {
+            synchronized (channelLock) {
+                updateIndex(indexer.extendToBlock(virtualOffset >>> 16));
+            }
+        }
+        try {
+            seek(index.toInputOffset(virtualOffset));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * <p>Gets this {@link RandomAccessBgzFile}'s file position as BGZF virtual file offset</p>
+     * 
+     * @return Virtual file offset of this {@link RandomAccessBgzFile}'s file position
+     * @see BgzipIndex#toVirtualOffset(long)
+     */
+    public long getVirtualPosition() {
+        return index.toVirtualOffset(pos);
+    }
+    
     /**
      * <p>Gets this {@link RandomAccessBgzFile}'s file position, 
      * relative to uncompressed data</p>
@@ -210,6 +586,7 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
      */
     public int skipBytes(int n) throws IOException {
         if (n > 0) {
+            ensureIndexed(pos + n - 1);
             long newPos = pos + n > inputLength ? inputLength : pos + n;
             long actual = newPos - pos;
             pos = newPos;
@@ -222,10 +599,14 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
     /**
      * <p>Gets uncompressed data length</p>
      * 
+     * <p>If the index is built lazily, this method scans all remaining blocks.</p>
+     * 
      * @return Total uncompressed data length
+     * @throws IllegalStateException If the index is built lazily, and scanning remaining blocks 
+     *         fails with I/O error or malformed data
      */
     public long inputLength() {
-        return inputLength;
+        return getIndex().getInputLength();
     }
     
     /**
@@ -267,23 +648,69 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
         if (off < 0 || len < 0 || len > b.length - off) {
             throw new IndexOutOfBoundsException();
         }
+        return read(b, null, off, len);
+    }
+    
+    /**
+     * <p>Read up to <code>dst.remaining()</code> bytes of uncompressed data from this {@link RandomAccessBgzFile} 
+     * into <code>dst</code></p>
+     * 
+     * <p>Uncompressed data is copied straight into <code>dst</code>, which saves an intermediate 
+     * array for direct buffers. Position of <code>dst</code> is advanced by the number of bytes read.</p>
+     * 
+     * <p>This method will block until at least one byte of input is available.</p>
+     * 
+     * @param dst The buffer into which the data will read
+     * @return The total number of bytes read into the buffer, 
+     *         or -1 if there is no more data because the end of this file has been reached. 
+     * @throws IOException If I/O error occurs
+     * @throws NullPointerException If <code>dst</code> is <code>null</code>
+     * @throws ReadOnlyBufferException If <code>dst</code> is read-only
+     * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+     */
+    public int read(ByteBuffer dst) throws IOException, MalformedBgzipDataException {
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        int cb;
+        if (dst.hasArray()) {
+            cb = read(dst.array(), null, dst.arrayOffset() + dst.position(), dst.remaining());
+            if (cb > 0) {
+                ((Buffer) dst).position(dst.position() + cb);
+            }
+        } else {
+            cb = read(null, dst, 0, dst.remaining());
+        }
+        return cb;
+    }
+    
+    /**
+     * Reads uncompressed data either into <code>b</code> starting from <code>off</code>, 
+     * or into <code>dst</code> if <code>b</code> is <code>null</code>
+     */
+    private int read(byte[] b, ByteBuffer dst, int off, int len) throws IOException, MalformedBgzipDataException {
         if (len == 0) {
             return 0;
         }
+        ensureIndexed(pos + len - 1);
         if (pos >= inputLength) {
             return -1;
         }
         
         int cb = 0;
+        BgzipMetricsListener metricsListener = this.metricsListener;
         
         // try read from preceding/following cache
-        LocalCache[] caches = new LocalCache[] { preceding, following };
-        for (LocalCache cache : caches) {
-            if (cache != null && pos >= cache.pos && pos <= Integer.MAX_VALUE) {
-                int bytesAvailableInCache = (int) (cache.pos + cache.data.length - pos);
+        for (int c = 0; c < 2; c++) {
+            LocalCache cache = c == 0 ? preceding : following;
+            if (cache != null && pos >= cache.pos) {
+                long bytesAvailableInCache = cache.pos + cache.length - pos;
                 if (bytesAvailableInCache > 0) {
-                    int copyLength = Math.min(bytesAvailableInCache, len);
-                    System.arraycopy(cache.data, (int) (pos - cache.pos), b, off, copyLength);
+                    int copyLength = (int) Math.min(bytesAvailableInCache, len);
+                    copy(cache.data, (int) (pos - cache.pos), b, dst, off, copyLength);
+                    if (metricsListener != null) {
+                        metricsListener.cacheHit(BgzipMetricsListener.CacheSource.LOCAL, copyLength);
+                    }
                     cb += copyLength;
                     off += copyLength;
                     len -= copyLength;
@@ -295,181 +722,419 @@ public class RandomAccessBgzFile implements Closeable, AutoCloseable {
             }
         }
         
-        // find blocks
-        List<Entry<Long, BgzipBlock>> blocks = new ArrayList<>();
-        if (!blockTree.containsKey(pos)) {
-            blocks.add(blockTree.floorEntry(pos));
+        if (pos >= inputLength) {
+            return cb;
+        }
+        
+        if (compressed == null) {
+            compressed = new byte[BgzipBlock.MAX_BLOCK_SIZE];
+            compressedBuffer = ByteBuffer.wrap(compressed);
         }
-        blocks.addAll(blockTree.tailMap(pos).headMap(pos + len).entrySet());
         
-        for (int i = 0; i < blocks.size(); i++) {
-            Entry<Long, BgzipBlock> entry = blocks.get(i);
-            BgzipBlock block = entry.getValue();
-            long inputOffset = entry.getKey();
-            int inputLength = block.getInputLength();
+        // compressed data of blocks read at once in compressed[0, bufferedLength)
+        long bufferedPosition = 0;
+        int bufferedLength = 0;
+        
+        // find blocks
+        final long end = pos + len;
+        final int first = index.indexOf(pos);
+        for (int i = first; len > 0 && i < index.getBlockCount(); i++) {
+            long inputOffset = index.getInputOffset(i);
+            int inputLength = index.getInputLength(i);
+            int blockSize = index.getBlockSize(i);
+            if (blockSize > BgzipBlock.MAX_BLOCK_SIZE || inputLength > BgzipBlock.MAX_BLOCK_SIZE) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: block too large");
+            }
             
-            // Read compresed data from block
-            byte[] compressed = new byte[block.getDataLength()];
-            channel.position(basePosition + block.getDataOffset());
-            int n = channel.read(ByteBuffer.wrap(compressed));
-            if (n != block.getDataLength()) {
-                throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to read");
+            // The first block goes to head cache, the others go to tail cache. Data of blocks 
+            // in between are copied out before being overwritten by their successors.
+            LocalCache cache = i == first ? head : tail;
+            
+            // Blocks in the middle are fully covered by the read, and inflated straight into b
+            // instead of a cache buffer
+            boolean direct = b != null && i != first && inputOffset + inputLength < end;
+            long blockPosition = basePosition + index.getBlockOffset(i);
+            byte[] inputData = null;
+            if (prefetcher != null) {
+                inputData = prefetcher.take(i);
+                if (inputData == null) {
+                    // left sequential run, or prefetching stopped
+                    stopReadahead();
+                } else {
+                    if (metricsListener != null) {
+                        metricsListener.cacheHit(BgzipMetricsListener.CacheSource.READAHEAD, inputLength);
+                    }
+                    if (blockCache != null) {
+                        blockCache.put(blockCacheKey, blockPosition, inputData);
+                    }
+                }
+            } else if (readahead > 0) {
+                sequentialBlocks = i == nextBlock ? sequentialBlocks + 1 : 0;
+                if (sequentialBlocks >= 2 && i + 1 < index.getBlockCount()) {
+                    prefetcher = new BlockPrefetcher(this, index, decompressor, verifier, metricsListener, basePosition, i + 1, readahead);
+                    prefetcher.start();
+                }
             }
+            nextBlock = i + 1;
             
-            // Uncompress
-            inflater.setInput(compressed);
-            try {
-                byte[] inputData = new byte[inputLength];
-                int ret = inflater.inflate(inputData);
-                if (ret == 0) {
-                    throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to decompress");
-                } else if (ret != inputLength) {
-                    throw new MalformedBgzipDataException("Wrong compressed data block: not fully uncompressed");
+            if (inputData == null && blockCache != null) {
+                inputData = blockCache.get(blockCacheKey, blockPosition);
+                if (inputData != null && inputData.length == inputLength && metricsListener != null) {
+                    metricsListener.cacheHit(BgzipMetricsListener.CacheSource.SHARED, inputData.length);
                 }
-                
-                if (i == 0) {
-                    preceding = new LocalCache(inputOffset, inputData);
+            }
+            if (inputData != null && inputData.length == inputLength) {
+                if (!direct) {
+                    cache.share(inputOffset, inputData);
                 }
-                if (i == blocks.size() - 1) {
-                    following = new LocalCache(inputOffset, inputData);
+            } else {
+                long startNanos = metricsListener != null ? System.nanoTime() : 0;
+                
+                // Read whole block, including header and trailer, along with contiguous blocks following 
+                // it in this read, unless it's been read along with preceding blocks
+                if (blockPosition < bufferedPosition || blockPosition + blockSize > bufferedPosition + bufferedLength) {
+                    bufferedLength = mappedFile != null ? blockSize : index.coalescedSize(i, end, maxCoalescedRead);
+                    if (bufferedLength > compressed.length) {
+                        compressed = new byte[bufferedLength];
+                        compressedBuffer = ByteBuffer.wrap(compressed);
+                    }
+                    readBlock(blockPosition, bufferedLength, compressedBuffer);
+                    bufferedPosition = blockPosition;
                 }
+                int blockOff = (int) (blockPosition - bufferedPosition);
+                long readNanos = metricsListener != null ? System.nanoTime() : 0;
                 
-                long copyStart = 0;
-                int copyLength = inputLength;
-                if (inputOffset < pos) {
-                    long copySkip = pos - inputOffset;
-                    copyStart += copySkip;
-                    copyLength -= copySkip;
+                // Uncompress
+                byte[] target = direct ? b : cache.invalidate();
+                int targetOff = direct ? off : 0;
+                BgzipBlock.inflate(decompressor, compressed, blockOff, blockSize, target, targetOff, inputLength);
+                if (verifier != null) {
+                    verifier.verify(i, compressed, blockOff, blockSize, target, targetOff, inputLength);
                 }
-                if (copyLength > len) {
-                    copyLength = len;
+                if (metricsListener != null) {
+                    metricsListener.blockDecompressed(blockPosition, blockSize, inputLength, 
+                            readNanos - startNanos, System.nanoTime() - readNanos);
                 }
-                System.arraycopy(inputData, (int) copyStart, b, off, copyLength);
                 
-                len -= copyLength;
-                pos += copyLength;
-                off += copyLength;
-                cb += copyLength;
-            } catch (DataFormatException e) {
-                throw new MalformedBgzipDataException("Wrong compressed data block: invalid zlib format", e);
-            } finally {
-                inflater.reset();
+                if (blockCache != null) {
+                    blockCache.put(blockCacheKey, blockPosition, Arrays.copyOfRange(target, targetOff, targetOff + inputLength));
+                }
+                
+                if (direct) {
+                    len -= inputLength;
+                    pos += inputLength;
+                    off += inputLength;
+                    cb += inputLength;
+                    continue;
+                }
+                inputData = target;
+                cache.validate(inputOffset, inputLength);
+            }
+            
+            if (i == first) {
+                preceding = cache;
+            }
+            if (inputOffset + inputLength >= end || i == index.getBlockCount() - 1) {
+                following = cache;
+            }
+            
+            long copyStart = 0;
+            int copyLength = inputLength;
+            if (inputOffset < pos) {
+                long copySkip = pos - inputOffset;
+                copyStart += copySkip;
+                copyLength -= copySkip;
+            }
+            if (copyLength > len) {
+                copyLength = len;
             }
+            copy(inputData, (int) copyStart, b, dst, off, copyLength);
+            
+            len -= copyLength;
+            pos += copyLength;
+            off += copyLength;
+            cb += copyLength;
         }
         
         return cb;
     }
     
-    private BgzipBlock readBlock() throws IOException {
-        BgzipBlock.Builder builder = BgzipBlock.builder();
-        
-        ByteBuffer bb;
-        
-        // Headers
-        bb = ByteBuffer.allocateDirect(12);
-        int headerBytes = channel.read(bb);
-        ((Buffer) bb).rewind();
-        if (headerBytes != 12) {
-            throw new MalformedBgzipDataException("Header is broken");
+    private static void copy(byte[] src, int srcPos, byte[] b, ByteBuffer dst, int off, int length) {
+        if (b != null) {
+            System.arraycopy(src, srcPos, b, off, length);
+        } else {
+            dst.put(src, srcPos, length);
         }
+    }
+    
+    /**
+     * Reads whole block into <code>dst</code>, which is backed by an array. Also used by readahead thread.
+     */
+    void readBlock(long blockPosition, int blockSize, ByteBuffer dst) throws IOException, MalformedBgzipDataException {
+        if (mappedFile != null) {
+            try {
+                mappedFile.read(blockPosition, dst.array(), 0, blockSize);
+            } catch (EOFException e) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to read", e);
+            }
+        } else {
+            ((Buffer) dst).clear();
+            ((Buffer) dst).limit(blockSize);
+            synchronized (channelLock) {
+                channel.position(blockPosition);
+                while (dst.hasRemaining() && channel.read(dst) > 0) {
+                    // large reads may be served partially
+                }
+            }
+            if (dst.position() != blockSize) {
+                throw new MalformedBgzipDataException("Wrong compressed data block: block data incomplete to read");
+            }
+        }
+    }
+    
+    /**
+     * <p>Builder of {@link RandomAccessBgzFile}</p>
+     * 
+     * @see RandomAccessBgzFile#builder(File)
+     */
+    public static class Builder {
+        private final File file;
+        private BgzipIndex index;
+        private File indexFile;
+        private boolean memoryMapped;
+        private int readahead;
+        private int maxCoalescedRead = BgzipBlock.DEFAULT_MAX_COALESCED_READ;
+        private CrcVerification crcVerification = CrcVerification.OFF;
+        private BgzipDecompressor decompressor = BgzipDecompressor.ZLIB;
+        private boolean lazyIndex;
+        private Executor scanExecutor;
+        private BgzipMetricsListener metricsListener;
         
-        // ID1 = 0x1f
-        // ID2 = 0x8b
-        // CM = 0x08
-        // FLG = 0x04
-        final int f1 = bb.getInt();
-        if (f1 != 0x1f8b0804) {
-            throw new MalformedBgzipDataException("Malformed block header");
+        private Builder(File file) {
+            this.file = file;
         }
         
-        // sizeof(MTIME) = 4
-        // sizeof(XFL) = 1
-        // sizeof(OS) = 1
-        bb.position(10);
+        /**
+         * <p>Uses an existing block index of the file, such as one obtained from 
+         * {@link RandomAccessBgzFile#getIndex()} or {@link ConcurrentBgzFile#getIndex()}.</p>
+         * 
+         * @param index
+         * @return This builder
+         */
+        public Builder index(BgzipIndex index) {
+            this.index = index;
+            return this;
+        }
         
-        // XLEN
-        final int xlen = BgzipUtils.readUint16(bb);
+        /**
+         * <p>Loads block index from a samtools compatible <code>.gzi</code> index. If the index 
+         * is absent or stale, it's built by walking through all block headers of the file, and 
+         * saved to <code>indexFile</code>. Ignored if {@link #index(BgzipIndex)} is specified.</p>
+         * 
+         * @param indexFile
+         * @return This builder
+         * @see RandomAccessBgzFile#open(File, File)
+         */
+        public Builder indexFile(File indexFile) {
+            this.indexFile = indexFile;
+            return this;
+        }
         
-        // Extra Subfield
-        bb = ByteBuffer.allocateDirect(xlen);
-        channel.read(bb);
-        ((Buffer) bb).rewind();
+        /**
+         * <p>Reads compressed data through memory mapping of the file, instead of reading from 
+         * file channel. This saves a system call per block, which is preferable if the file 
+         * is resident in page cache. Disabled by default.</p>
+         * 
+         * <p>Note: Mapped memory is not released by {@link RandomAccessBgzFile#close()}, 
+         * but when {@link RandomAccessBgzFile} object is garbage collected.</p>
+         * 
+         * @param memoryMapped
+         * @return This builder
+         */
+        public Builder memoryMapped(boolean memoryMapped) {
+            this.memoryMapped = memoryMapped;
+            return this;
+        }
         
-        int bSize = -1;
-        int remainXlen = xlen;
-        while (remainXlen > 0) {
-            // SI1: uint8 
-            // SI2: uint8
-            int si = bb.getShort();
-            // SLEN: uint16
-            int slen = BgzipUtils.readUint16(bb);
-            
-            remainXlen -= 4 + slen;
-            if (remainXlen < 0) {
-                throw new MalformedBgzipDataException("Bad extra field block");
-            }
-            
-            if (si == 0x4243) {
-                // BGZF subfield
-                if (slen != 2) {
-                    throw new MalformedBgzipDataException("Bad subfield length");
-                }
-                // BSIZE
-                if (bSize == -1) {
-                    bSize = BgzipUtils.readUint16(bb);
-                    if (bSize < 0) {
-                        throw new MalformedBgzipDataException("Bad BSIZE field");
-                    }
-                    builder.blockSize(bSize + 1);
-                } else {
-                    // already set bsize, duplicate BGZF subfield
-                    throw new MalformedBgzipDataException("Duplicate BGZF extrac subfield detected");
-                }
-            } else {
-                bb.position(bb.position() + slen);
+        /**
+         * <p>Sets number of blocks to read ahead when sequential reading is detected, 0 disables 
+         * readahead. Disabled by default.</p>
+         * 
+         * @param blocks
+         * @return This builder
+         * @see RandomAccessBgzFile#setReadahead(int)
+         */
+        public Builder readahead(int blocks) {
+            if (blocks < 0) {
+                throw new IllegalArgumentException(String.format("Negative readahead %d", blocks));
             }
+            this.readahead = blocks;
+            return this;
         }
         
-        if (bSize < 0) {
-            throw new MalformedBgzipDataException("Not a BGZF file");
+        /**
+         * <p>Sets maximum number of bytes read from the file at once, when reading compressed data 
+         * of contiguous blocks. 1 MiB by default.</p>
+         * 
+         * @param bytes
+         * @return This builder
+         * @throws IllegalArgumentException If <code>bytes</code> is negative
+         * @see RandomAccessBgzFile#setMaxCoalescedRead(int)
+         */
+        public Builder maxCoalescedRead(int bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException(String.format("Negative read size %d", bytes));
+            }
+            this.maxCoalescedRead = bytes;
+            return this;
         }
         
-        // Compressed data + CRC
-        final int dataLength = bSize - xlen - 19;
-        if (dataLength < 0) {
-            throw new MalformedBgzipDataException("Bad data length");
+        /**
+         * <p>Sets whether to verify uncompressed data of blocks against CRC32 and ISIZE in 
+         * block trailers. {@link CrcVerification#OFF} by default.</p>
+         * 
+         * @param mode
+         * @return This builder
+         * @throws NullPointerException If <code>mode</code> is <code>null</code>
+         * @see RandomAccessBgzFile#setCrcVerification(CrcVerification)
+         */
+        public Builder crcVerification(CrcVerification mode) {
+            if (mode == null) {
+                throw new NullPointerException();
+            }
+            this.crcVerification = mode;
+            return this;
         }
-        builder.dataLength(dataLength);
         
-        long dataOffset = channel.position() - basePosition;
-        builder.dataOffset(dataOffset);
-        // Skip data block
-        channel.position(basePosition + dataOffset + dataLength + 4);  // sizeof(CRC32) = 4
+        /**
+         * <p>Builds block index lazily, if neither {@link #index(BgzipIndex)} nor an up to date 
+         * {@link #indexFile(File)} is available. Disabled by default.</p>
+         * 
+         * <p>Instead of walking through all block headers on opening, block headers are scanned 
+         * on demand up to the highest position read, sought or skipped to, so that opening a file 
+         * and reading its beginning takes only a few blocks. {@link RandomAccessBgzFile#inputLength()}, 
+         * {@link RandomAccessBgzFile#getIndex()} and saving the index scan all remaining blocks. 
+         * Malformed blocks are reported when they're scanned. A lazily built index is not saved 
+         * to {@link #indexFile(File)}.</p>
+         * 
+         * @param lazyIndex
+         * @return This builder
+         */
+        public Builder lazyIndex(boolean lazyIndex) {
+            this.lazyIndex = lazyIndex;
+            return this;
+        }
         
-        // ISIZE
-        bb = ByteBuffer.allocateDirect(4);
-        channel.read(bb);
-        ((Buffer) bb).rewind();
+        /**
+         * <p>Builds block index by scanning parts of the file in parallel with tasks submitted to 
+         * <code>executor</code>, if the index is neither specified by {@link #index(BgzipIndex)} nor loaded 
+         * from {@link #indexFile(File)}. By default the index is built sequentially by calling thread.</p>
+         * 
+         * @param executor Executor running scanning tasks, or <code>null</code> to scan sequentially
+         * @return This builder
+         * @see BgzipIndex#scan(FileChannel, Executor)
+         */
+        public Builder scanExecutor(Executor executor) {
+            this.scanExecutor = executor;
+            return this;
+        }
         
-        final int isize = (int) BgzipUtils.readUint32(bb);  // ISIZE of BGZF is limited to 0 ~ 65536
-        builder.inputLength(isize);
+        /**
+         * <p>Sets decompressor of block data. {@link BgzipDecompressor#ZLIB} by default.</p>
+         * 
+         * @param decompressor
+         * @return This builder
+         * @throws NullPointerException If <code>decompressor</code> is <code>null</code>
+         * @see RandomAccessBgzFile#setDecompressor(BgzipDecompressor)
+         */
+        public Builder decompressor(BgzipDecompressor decompressor) {
+            if (decompressor == null) {
+                throw new NullPointerException();
+            }
+            this.decompressor = decompressor;
+            return this;
+        }
         
-        // Detect EOF marker
-        if (isize == 0) {
-            // null means EOF
-            return null;
+        /**
+         * <p>Sets listener receiving block level metrics, including time spent building or loading 
+         * block index while opening the file. Disabled by default.</p>
+         * 
+         * @param listener Metrics listener, or <code>null</code> to disable metrics
+         * @return This builder
+         * @see RandomAccessBgzFile#setMetricsListener(BgzipMetricsListener)
+         */
+        public Builder metricsListener(BgzipMetricsListener listener) {
+            this.metricsListener = listener;
+            return this;
         }
         
-        return builder.build();
+        /**
+         * <p>Opens the file and builds a {@link RandomAccessBgzFile}</p>
+         * 
+         * @return A new {@link RandomAccessBgzFile} instance
+         * @throws IOException If IO error occurs while loading or building index
+         * @throws MalformedBgzipDataException If compressed data is not valid BGZF format
+         * @throws FileNotFoundException If the file is not a valid file
+         */
+        public RandomAccessBgzFile build() throws IOException, FileNotFoundException, MalformedBgzipDataException {
+            Object fileKey = FileIdentity.of(file);
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                long startNanos = System.nanoTime();
+                BgzipIndex index = this.index;
+                if (index == null && indexFile != null) {
+                    index = lazyIndex ? BgzipIndex.load(channel, file, indexFile) 
+                            : BgzipIndex.loadOrScan(channel, file, indexFile, scanExecutor);
+                }
+                if (index == null && !lazyIndex) {
+                    index = scanExecutor != null ? BgzipIndex.scan(channel, scanExecutor) : BgzipIndex.scan(channel);
+                }
+                if (metricsListener != null && index != null && index != this.index) {
+                    metricsListener.indexBuilt(index.getBlockCount(), System.nanoTime() - startNanos);
+                }
+                RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(fileKey, channel, true, index, memoryMapped, lazyIndex);
+                bgzFile.setReadahead(readahead);
+                bgzFile.setMaxCoalescedRead(maxCoalescedRead);
+                bgzFile.setCrcVerification(crcVerification);
+                bgzFile.setDecompressor(decompressor);
+                bgzFile.setMetricsListener(metricsListener);
+                return bgzFile;
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
     }
     
     private static class LocalCache {
-        final long pos;
-        final byte[] data;
-        LocalCache(long pos, byte[] data) {
-            super();
+        long pos = 0;
+        int length = 0;
+        byte[] data = null;
+        byte[] buffer = null;
+        
+        /**
+         * Marks this cache as empty before overwriting its own buffer
+         */
+        byte[] invalidate() {
+            length = 0;
+            if (buffer == null) {
+                buffer = new byte[BgzipBlock.MAX_BLOCK_SIZE];
+            }
+            data = buffer;
+            return buffer;
+        }
+        
+        void validate(long pos, int length) {
             this.pos = pos;
+            this.length = length;
+        }
+        
+        /**
+         * Refers to data of block cache instead of own buffer
+         */
+        void share(long pos, byte[] data) {
             this.data = data;
+            validate(pos, data.length);
         }
     }
     
@@ -0,0 +1,427 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Tabix (<code>.tbi</code>) or CSI (<code>.csi</code>) index of a BGZF compressed, position sorted
+ * text file, such as VCF or BED</p>
+ * 
+ * <p>The index maps genomic regions to chunks of the data file, addressed by BGZF virtual file offsets.
+ * Regions are 0-based, half-open intervals <code>[beg, end)</code>. {@link TabixReader} reads records
+ * overlapping a region by visiting these chunks only.</p>
+ * 
+ * <p>Instances of this class are immutable, thus can be shared by multiple readers.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see http://samtools.github.io/hts-specs/tabix.pdf
+ * @see http://samtools.github.io/hts-specs/CSIv1.pdf
+ */
+public final class TabixIndex {
+    
+    /**
+     * Generic tab-delimited format
+     */
+    public static final int FORMAT_GENERIC = 0;
+    
+    /**
+     * SAM format, end of record is computed from CIGAR
+     */
+    public static final int FORMAT_SAM = 1;
+    
+    /**
+     * VCF format, end of record is computed from REF or END in INFO
+     */
+    public static final int FORMAT_VCF = 2;
+    
+    /**
+     * Flag of format indicating 0-based, half-open coordinates (UCSC BED style)
+     */
+    static final int FLAG_UCSC = 0x10000;
+    
+    private static final int TBI_MIN_SHIFT = 14;
+    private static final int TBI_DEPTH = 5;
+    
+    private final int minShift;
+    private final int depth;
+    private final boolean linear;
+    private final int format;
+    private final int sequenceColumn;
+    private final int beginColumn;
+    private final int endColumn;
+    private final char metaChar;
+    private final int skipLines;
+    private final List<String> sequenceNames;
+    private final Map<String, Integer> sequenceIds;
+    private final Reference[] references;
+    
+    private TabixIndex(int minShift, int depth, boolean linear, ByteBuffer conf, Reference[] references)
+            throws MalformedBgzipDataException {
+        this.minShift = minShift;
+        this.depth = depth;
+        this.linear = linear;
+        this.references = references;
+        
+        if (conf != null) {
+            this.format = conf.getInt();
+            this.sequenceColumn = conf.getInt();
+            this.beginColumn = conf.getInt();
+            this.endColumn = conf.getInt();
+            this.metaChar = (char) conf.getInt();
+            this.skipLines = conf.getInt();
+            int namesLength = conf.getInt();
+            if (namesLength < 0 || namesLength > conf.remaining()) {
+                throw new MalformedBgzipDataException("Bad sequence names");
+            }
+            List<String> names = new ArrayList<>();
+            int start = conf.position();
+            int namesEnd = start + namesLength;
+            for (int i = start; i < namesEnd; i++) {
+                if (conf.get(i) == 0) {
+                    names.add(new String(conf.array(), conf.arrayOffset() + start, i - start, StandardCharsets.US_ASCII));
+                    start = i + 1;
+                }
+            }
+            this.sequenceNames = Collections.unmodifiableList(names);
+        } else {
+            // CSI index without tabix meta data, such as index of BAM
+            this.format = FORMAT_GENERIC;
+            this.sequenceColumn = 0;
+            this.beginColumn = 0;
+            this.endColumn = 0;
+            this.metaChar = 0;
+            this.skipLines = 0;
+            this.sequenceNames = Collections.emptyList();
+        }
+        
+        this.sequenceIds = new HashMap<>();
+        for (int i = 0; i < sequenceNames.size(); i++) {
+            sequenceIds.put(sequenceNames.get(i), i);
+        }
+    }
+    
+    /**
+     * <p>Loads tabix or CSI index from <code>indexFile</code>, the format is detected by its content.</p>
+     * 
+     * @param indexFile
+     * @return Index loaded
+     * @throws IOException If I/O error occurs
+     * @throws MalformedBgzipDataException If <code>indexFile</code> is not a valid tabix or CSI index
+     * @throws NullPointerException If <code>indexFile</code> is <code>null</code>
+     */
+    public static TabixIndex load(File indexFile) throws IOException, MalformedBgzipDataException {
+        byte[] content;
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(indexFile)) {
+            if (bgzFile.inputLength() > Integer.MAX_VALUE) {
+                throw new MalformedBgzipDataException("Index too large");
+            }
+            content = new byte[(int) bgzFile.inputLength()];
+            int off = 0;
+            while (off < content.length) {
+                off += bgzFile.read(content, off, content.length - off);
+            }
+        }
+        
+        ByteBuffer bb = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int magic = bb.getInt();
+            if (magic == 0x01494254) {
+                // "TBI\1"
+                int referenceCount = bb.getInt();
+                int namesLength = bb.getInt(bb.position() + 24);
+                ByteBuffer conf = slice(bb, 28 + namesLength);
+                Reference[] references = new Reference[checkCount(referenceCount)];
+                for (int i = 0; i < referenceCount; i++) {
+                    references[i] = readReference(bb, true);
+                }
+                return new TabixIndex(TBI_MIN_SHIFT, TBI_DEPTH, true, conf, references);
+            } else if (magic == 0x01495343) {
+                // "CSI\1"
+                int minShift = bb.getInt();
+                int depth = bb.getInt();
+                int auxLength = bb.getInt();
+                ByteBuffer conf = auxLength >= 28 ? slice(bb, auxLength) : null;
+                if (conf == null) {
+                    ((Buffer) bb).position(bb.position() + auxLength);
+                }
+                int referenceCount = bb.getInt();
+                Reference[] references = new Reference[checkCount(referenceCount)];
+                for (int i = 0; i < referenceCount; i++) {
+                    references[i] = readReference(bb, false);
+                }
+                if (minShift <= 0 || depth <= 0 || minShift + 3 * depth > 62) {
+                    throw new MalformedBgzipDataException("Bad CSI parameters");
+                }
+                return new TabixIndex(minShift, depth, false, conf, references);
+            } else {
+                throw new MalformedBgzipDataException("Not a tabix or CSI index");
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new MalformedBgzipDataException("Index is truncated", e);
+        }
+    }
+    
+    private static ByteBuffer slice(ByteBuffer bb, int length) {
+        ByteBuffer slice = ByteBuffer.wrap(bb.array(), bb.position(), length).slice().order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) bb).position(bb.position() + length);
+        return slice;
+    }
+    
+    private static int checkCount(int count) throws MalformedBgzipDataException {
+        if (count < 0) {
+            throw new MalformedBgzipDataException("Bad count in index");
+        }
+        return count;
+    }
+    
+    private static Reference readReference(ByteBuffer bb, boolean linear) throws MalformedBgzipDataException {
+        int binCount = checkCount(bb.getInt());
+        Map<Integer, Bin> bins = new HashMap<>(binCount * 2);
+        for (int i = 0; i < binCount; i++) {
+            int bin = bb.getInt();
+            long loffset = linear ? 0 : bb.getLong();
+            int chunkCount = checkCount(bb.getInt());
+            long[] chunks = new long[chunkCount * 2];
+            for (int j = 0; j < chunks.length; j++) {
+                chunks[j] = bb.getLong();
+            }
+            bins.put(bin, new Bin(loffset, chunks));
+        }
+        
+        long[] intervals = null;
+        if (linear) {
+            intervals = new long[checkCount(bb.getInt())];
+            for (int i = 0; i < intervals.length; i++) {
+                intervals[i] = bb.getLong();
+            }
+        }
+        return new Reference(bins, intervals);
+    }
+    
+    /**
+     * <p>Gets names of sequences (chromosomes) in the index, the position of a name in the list
+     * is its sequence id.</p>
+     * 
+     * @return Unmodifiable list of sequence names, empty if the index doesn't contain names
+     */
+    public List<String> getSequenceNames() {
+        return sequenceNames;
+    }
+    
+    /**
+     * <p>Gets format of indexed file, one of {@link #FORMAT_GENERIC}, {@link #FORMAT_SAM}
+     * and {@link #FORMAT_VCF}</p>
+     * 
+     * @return Format of indexed file
+     */
+    public int getFormat() {
+        return format & 0xffff;
+    }
+    
+    /**
+     * <p>Tells whether coordinates in the indexed file are 0-based, half-open, such as BED. Otherwise
+     * they are 1-based, closed.</p>
+     * 
+     * @return <code>true</code> if coordinates are 0-based
+     */
+    public boolean isZeroBased() {
+        return (format & FLAG_UCSC) != 0;
+    }
+    
+    /**
+     * <p>Gets 1-based column number of sequence name</p>
+     * 
+     * @return Column number of sequence name
+     */
+    public int getSequenceColumn() {
+        return sequenceColumn;
+    }
+    
+    /**
+     * <p>Gets 1-based column number of region begin</p>
+     * 
+     * @return Column number of region begin
+     */
+    public int getBeginColumn() {
+        return beginColumn;
+    }
+    
+    /**
+     * <p>Gets 1-based column number of region end, 0 if records have no end column</p>
+     * 
+     * @return Column number of region end
+     */
+    public int getEndColumn() {
+        return endColumn;
+    }
+    
+    /**
+     * <p>Gets leading character of meta lines, such as <code>#</code></p>
+     * 
+     * @return Leading character of meta lines
+     */
+    public char getMetaChar() {
+        return metaChar;
+    }
+    
+    /**
+     * <p>Gets number of header lines to skip at beginning of file</p>
+     * 
+     * @return Number of header lines
+     */
+    public int getSkipLines() {
+        return skipLines;
+    }
+    
+    /**
+     * <p>Gets id of sequence <code>name</code></p>
+     * 
+     * @param name
+     * @return Sequence id, or -1 if <code>name</code> is not in the index
+     */
+    public int getSequenceId(String name) {
+        Integer id = sequenceIds.get(name);
+        return id != null ? id : -1;
+    }
+    
+    /**
+     * <p>Finds chunks of the data file which may contain records overlapping <code>[beg, end)</code> of
+     * sequence <code>name</code>.</p>
+     * 
+     * @param name Sequence name
+     * @param beg 0-based begin of region, inclusive
+     * @param end 0-based end of region, exclusive
+     * @return Sorted, non-overlapping chunks as pairs of virtual file offsets:
+     *         <code>[begin0, end0, begin1, end1, ...]</code>, empty if <code>name</code> is not in the index
+     */
+    public long[] getChunks(String name, long beg, long end) {
+        int id = getSequenceId(name);
+        return id >= 0 ? getChunks(id, beg, end) : new long[0];
+    }
+    
+    /**
+     * <p>Finds chunks of the data file which may contain records overlapping <code>[beg, end)</code> of
+     * sequence <code>id</code>.</p>
+     * 
+     * @param id Sequence id
+     * @param beg 0-based begin of region, inclusive
+     * @param end 0-based end of region, exclusive
+     * @return Sorted, non-overlapping chunks as pairs of virtual file offsets:
+     *         <code>[begin0, end0, begin1, end1, ...]</code>, empty if <code>id</code> is not in the index
+     */
+    public long[] getChunks(int id, long beg, long end) {
+        if (id < 0 || id >= references.length) {
+            return new long[0];
+        }
+        long maxEnd = 1L << (minShift + 3 * depth);
+        beg = Math.max(beg, 0);
+        end = Math.min(end, maxEnd);
+        if (beg >= end) {
+            return new long[0];
+        }
+        
+        Reference reference = references[id];
+        long minOffset = minOffset(reference, beg);
+        
+        // Collect chunks of all bins overlapping the region, ending after minimum offset
+        List<long[]> chunks = new ArrayList<>();
+        int shift = minShift + 3 * depth;
+        long first = 0;
+        for (int level = 0; level <= depth; level++) {
+            for (long bin = first + (beg >> shift); bin <= first + ((end - 1) >> shift); bin++) {
+                Bin b = reference.bins.get((int) bin);
+                if (b == null) {
+                    continue;
+                }
+                for (int i = 0; i < b.chunks.length; i += 2) {
+                    if (b.chunks[i + 1] > minOffset) {
+                        chunks.add(new long[] { Math.max(b.chunks[i], minOffset), b.chunks[i + 1] });
+                    }
+                }
+            }
+            first += 1L << (3 * level);
+            shift -= 3;
+        }
+        
+        // Sort and merge chunks which overlap, or end and begin in the same block
+        Collections.sort(chunks, CHUNK_ORDER);
+        long[] merged = new long[chunks.size() * 2];
+        int n = 0;
+        for (long[] chunk : chunks) {
+            if (n > 0 && (chunk[0] <= merged[n - 1] || chunk[0] >>> 16 == merged[n - 1] >>> 16)) {
+                merged[n - 1] = Math.max(merged[n - 1], chunk[1]);
+            } else {
+                merged[n++] = chunk[0];
+                merged[n++] = chunk[1];
+            }
+        }
+        return Arrays.copyOf(merged, n);
+    }
+    
+    /**
+     * Records overlapping <code>beg</code> start no earlier than the returned virtual offset
+     */
+    private long minOffset(Reference reference, long beg) {
+        if (linear) {
+            long[] intervals = reference.intervals;
+            if (intervals.length == 0) {
+                return 0;
+            }
+            int i = (int) Math.min(beg >> minShift, intervals.length - 1);
+            return intervals[i];
+        }
+        
+        // CSI has no linear index, use loffset of the smallest existing bin containing beg
+        long bin = ((1L << (3 * depth)) - 1) / 7 + (beg >> minShift);
+        while (true) {
+            Bin b = reference.bins.get((int) bin);
+            if (b != null) {
+                return b.loffset;
+            }
+            if (bin == 0) {
+                return 0;
+            }
+            bin = (bin - 1) >> 3;
+        }
+    }
+    
+    private static final Comparator<long[]> CHUNK_ORDER = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            return Long.compare(a[0], b[0]);
+        }
+    };
+    
+    private static class Reference {
+        final Map<Integer, Bin> bins;
+        final long[] intervals;
+        
+        Reference(Map<Integer, Bin> bins, long[] intervals) {
+            this.bins = bins;
+            this.intervals = intervals;
+        }
+    }
+    
+    private static class Bin {
+        final long loffset;
+        final long[] chunks;
+        
+        Bin(long loffset, long[] chunks) {
+            this.loffset = loffset;
+            this.chunks = chunks;
+        }
+    }
+    
+}
@@ -0,0 +1,429 @@
+package com.vivimice.bgzfrandreader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>Reads records of a tabix indexed, BGZF compressed text file overlapping a region</p>
+ * 
+ * <p>Regions are resolved to chunks of the data file by {@link TabixIndex}, only these chunks are
+ * read and decompressed, so the cost of a query is proportional to the size of its result rather
+ * than the size of the file.</p>
+ * 
+ * <p>Example:</p>
+ * <pre>
+ * try (TabixReader reader = new TabixReader(new File("test.vcf.gz"))) {
+ *     TabixReader.Records records = reader.query("chr1:10000-20000");
+ *     String line;
+ *     while ((line = records.next()) != null) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * 
+ * <p><b>WARNING: This class is not thread safe.</b> Records of different queries must not be
+ * read in an interleaved way.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see http://samtools.github.io/hts-specs/tabix.pdf
+ */
+public class TabixReader implements Closeable, AutoCloseable {
+    
+    private final RandomAccessBgzFile file;
+    private final TabixIndex index;
+    
+    /**
+     * <p>Constructs a TabixReader reading <code>dataFile</code>, using index in <code>dataFile.tbi</code>,
+     * or <code>dataFile.csi</code> if the former doesn't exist.</p>
+     * 
+     * @param dataFile
+     * @throws IOException If I/O error occurs
+     * @throws FileNotFoundException If <code>dataFile</code> or its index is not a valid file
+     * @throws MalformedBgzipDataException If the data file or index is not valid
+     * @throws NullPointerException If <code>dataFile</code> is <code>null</code>
+     */
+    public TabixReader(File dataFile) throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        this(dataFile, defaultIndexFile(dataFile));
+    }
+    
+    /**
+     * <p>Constructs a TabixReader reading <code>dataFile</code>, using tabix or CSI index in
+     * <code>indexFile</code>.</p>
+     * 
+     * <p>Block index of <code>dataFile</code> is built in memory by walking through all block headers,
+     * nothing is written next to <code>dataFile</code>. To reuse a <code>.gzi</code> index, open the data
+     * file by {@link RandomAccessBgzFile#open(File)} and use {@link #TabixReader(RandomAccessBgzFile, TabixIndex)}.</p>
+     * 
+     * @param dataFile
+     * @param indexFile
+     * @throws IOException If I/O error occurs
+     * @throws FileNotFoundException If <code>dataFile</code> or <code>indexFile</code> is not a valid file
+     * @throws MalformedBgzipDataException If the data file or index is not valid
+     * @throws NullPointerException If <code>dataFile</code> or <code>indexFile</code> is <code>null</code>
+     */
+    public TabixReader(File dataFile, File indexFile)
+            throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        this(dataFile, TabixIndex.load(indexFile));
+    }
+    
+    /**
+     * Opens <code>dataFile</code> after its index is loaded, so nothing is left open if loading the index fails
+     */
+    private TabixReader(File dataFile, TabixIndex index)
+            throws IOException, FileNotFoundException, MalformedBgzipDataException {
+        this(new RandomAccessBgzFile(dataFile), index);
+    }
+    
+    /**
+     * <p>Constructs a TabixReader reading <code>file</code> with <code>index</code>.</p>
+     * 
+     * <p>Note: <code>file</code> is closed when calling {@link #close()} method.</p>
+     * 
+     * @param file
+     * @param index
+     * @throws NullPointerException If <code>file</code> or <code>index</code> is <code>null</code>
+     */
+    public TabixReader(RandomAccessBgzFile file, TabixIndex index) {
+        if (file == null || index == null) {
+            throw new NullPointerException();
+        }
+        this.file = file;
+        this.index = index;
+    }
+    
+    private static File defaultIndexFile(File dataFile) throws FileNotFoundException {
+        File tbi = new File(dataFile.getPath() + ".tbi");
+        if (tbi.isFile()) {
+            return tbi;
+        }
+        File csi = new File(dataFile.getPath() + ".csi");
+        if (csi.isFile()) {
+            return csi;
+        }
+        throw new FileNotFoundException(String.format("Neither %s nor %s found", tbi, csi));
+    }
+    
+    /**
+     * <p>Gets index of the data file</p>
+     * 
+     * @return Tabix or CSI index
+     */
+    public TabixIndex getIndex() {
+        return index;
+    }
+    
+    /**
+     * <p>Queries records overlapping <code>region</code>, in the form of <code>name</code>,
+     * <code>name:begin</code> or <code>name:begin-end</code> as accepted by <code>tabix</code>.
+     * Coordinates are 1-based and inclusive.</p>
+     * 
+     * @param region
+     * @return Records overlapping the region
+     * @throws IllegalArgumentException If <code>region</code> can't be parsed
+     * @throws NullPointerException If <code>region</code> is <code>null</code>
+     */
+    public Records query(String region) {
+        if (index.getSequenceId(region) >= 0) {
+            return query(region, 0, Long.MAX_VALUE);
+        }
+        
+        int colon = region.lastIndexOf(':');
+        if (colon < 0) {
+            return query(region, 0, Long.MAX_VALUE);
+        }
+        String name = region.substring(0, colon);
+        String range = region.substring(colon + 1).replace(",", "");
+        try {
+            int dash = range.indexOf('-');
+            long beg = Long.parseLong(dash < 0 ? range : range.substring(0, dash));
+            long end = dash < 0 || dash == range.length() - 1 ? Long.MAX_VALUE : Long.parseLong(range.substring(dash + 1));
+            return query(name, Math.max(beg - 1, 0), end);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Bad region %s", region), e);
+        }
+    }
+    
+    /**
+     * <p>Queries records of sequence <code>name</code> overlapping <code>[beg, end)</code>.
+     * Coordinates are 0-based, half-open.</p>
+     * 
+     * @param name Sequence name
+     * @param beg 0-based begin of region, inclusive
+     * @param end 0-based end of region, exclusive
+     * @return Records overlapping the region, empty if <code>name</code> is not in the index
+     * @throws NullPointerException If <code>name</code> is <code>null</code>
+     */
+    public Records query(String name, long beg, long end) {
+        return new Records(name.getBytes(StandardCharsets.UTF_8), beg, end, index.getChunks(name, beg, end));
+    }
+    
+    /**
+     * <p>Closes the data file</p>
+     * 
+     * @throws IOException If I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+    
+    /**
+     * <p>Records overlapping a region, read on demand</p>
+     */
+    public class Records {
+        
+        private final byte[] name;
+        private final long queryBeg;
+        private final long queryEnd;
+        private final long[] chunks;
+        private final int[] fieldStarts;
+        private final int[] fieldEnds;
+        
+        private int chunk = 0;
+        private long chunkEnd = -1;
+        private boolean done = false;
+        
+        // Uncompressed data read ahead, buffer[0] is at bufferStart of the data file
+        private final byte[] buffer = new byte[65536];
+        private long bufferStart = -1;
+        private int bufferPos = 0;
+        private int bufferLength = 0;
+        
+        private byte[] line = new byte[1024];
+        private int lineLength = 0;
+        
+        private Records(byte[] name, long queryBeg, long queryEnd, long[] chunks) {
+            this.name = name;
+            this.queryBeg = queryBeg;
+            this.queryEnd = queryEnd;
+            this.chunks = chunks;
+            
+            int columns = Math.max(index.getSequenceColumn(), Math.max(index.getBeginColumn(), index.getEndColumn()));
+            if (index.getFormat() == TabixIndex.FORMAT_VCF) {
+                columns = Math.max(columns, 8);    // REF = 4, INFO = 8
+            } else if (index.getFormat() == TabixIndex.FORMAT_SAM) {
+                columns = Math.max(columns, 6);    // CIGAR = 6
+            }
+            this.fieldStarts = new int[columns + 1];
+            this.fieldEnds = new int[columns + 1];
+        }
+        
+        /**
+         * <p>Reads next record overlapping the region</p>
+         * 
+         * @return Next record without line terminator, or <code>null</code> if there are no more records
+         * @throws IOException If I/O error occurs
+         * @throws MalformedBgzipDataException If data file or index is not valid
+         */
+        public String next() throws IOException, MalformedBgzipDataException {
+            while (!done && nextLine()) {
+                int overlap = overlap();
+                if (overlap == 0) {
+                    return new String(line, 0, lineLength, StandardCharsets.UTF_8);
+                } else if (overlap > 0) {
+                    // records are sorted by begin, none of the following ones overlaps
+                    done = true;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Reads next line of current chunk into line buffer, moving to next chunk if necessary
+         */
+        private boolean nextLine() throws IOException, MalformedBgzipDataException {
+            while (bufferStart < 0 || bufferStart + bufferPos >= chunkEnd) {
+                if (chunk >= chunks.length) {
+                    return false;
+                }
+                long beg;
+                try {
+                    beg = file.getIndex().toInputOffset(chunks[chunk]);
+                    chunkEnd = file.getIndex().toInputOffset(chunks[chunk + 1]);
+                } catch (IllegalArgumentException e) {
+                    throw new MalformedBgzipDataException("Tabix index doesn't match data file", e);
+                }
+                chunk += 2;
+                
+                if (bufferStart < 0 || beg > bufferStart + bufferPos) {
+                    // skip to the chunk, previous chunk may overlap it
+                    bufferStart = beg;
+                    bufferPos = 0;
+                    bufferLength = 0;
+                }
+            }
+            
+            lineLength = 0;
+            while (true) {
+                if (bufferPos == bufferLength) {
+                    bufferStart += bufferLength;
+                    bufferPos = 0;
+                    bufferLength = 0;
+                    file.seek(bufferStart);
+                    int cb = file.read(buffer);
+                    if (cb <= 0) {
+                        chunkEnd = bufferStart;
+                        return lineLength > 0;
+                    }
+                    bufferLength = cb;
+                }
+                
+                int start = bufferPos;
+                while (bufferPos < bufferLength && buffer[bufferPos] != '\n') {
+                    bufferPos++;
+                }
+                append(start, bufferPos - start);
+                if (bufferPos < bufferLength) {
+                    bufferPos++;    // line terminator
+                    if (lineLength > 0 && line[lineLength - 1] == '\r') {
+                        lineLength--;
+                    }
+                    return true;
+                }
+            }
+        }
+        
+        private void append(int start, int length) {
+            if (lineLength + length > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+            }
+            System.arraycopy(buffer, start, line, lineLength, length);
+            lineLength += length;
+        }
+        
+        /**
+         * Compares current line with the region
+         * 
+         * @return 0 if current line overlaps the region, positive if it begins after the region, negative
+         *         if it should be skipped
+         */
+        private int overlap() throws MalformedBgzipDataException {
+            if (lineLength == 0 || line[0] == index.getMetaChar()) {
+                return -1;
+            }
+            
+            // Split fields needed
+            Arrays.fill(fieldStarts, -1);
+            int column = 1;
+            fieldStarts[1] = 0;
+            for (int i = 0; i < lineLength && column < fieldStarts.length; i++) {
+                if (line[i] == '\t') {
+                    fieldEnds[column++] = i;
+                    if (column < fieldStarts.length) {
+                        fieldStarts[column] = i + 1;
+                    }
+                }
+            }
+            if (column < fieldStarts.length) {
+                fieldEnds[column] = lineLength;
+            }
+            
+            // Sequence name
+            int seqColumn = index.getSequenceColumn();
+            if (fieldStarts[seqColumn] < 0) {
+                return -1;
+            }
+            int seqLength = fieldEnds[seqColumn] - fieldStarts[seqColumn];
+            if (seqLength != name.length) {
+                return -1;
+            }
+            for (int i = 0; i < seqLength; i++) {
+                if (line[fieldStarts[seqColumn] + i] != name[i]) {
+                    return -1;
+                }
+            }
+            
+            // Begin and end of record, 0-based, half-open
+            long beg = parseLong(index.getBeginColumn());
+            if (!index.isZeroBased()) {
+                beg--;
+            }
+            long end;
+            switch (index.getFormat()) {
+            case TabixIndex.FORMAT_VCF:
+                if (fieldStarts[4] < 0) {
+                    throw new MalformedBgzipDataException("Column 4 is missing");
+                }
+                end = beg + (fieldEnds[4] - fieldStarts[4]);
+                long infoEnd = infoEnd();
+                if (infoEnd > beg) {
+                    end = infoEnd;
+                }
+                break;
+            case TabixIndex.FORMAT_SAM:
+                end = beg + Math.max(cigarLength(), 1);
+                break;
+            default:
+                end = index.getEndColumn() > 0 ? parseLong(index.getEndColumn()) : beg + 1;
+                break;
+            }
+            
+            if (beg >= queryEnd) {
+                return 1;
+            }
+            return end > queryBeg ? 0 : -1;
+        }
+        
+        private long parseLong(int column) throws MalformedBgzipDataException {
+            int start = fieldStarts[column];
+            int end = fieldEnds[column];
+            if (start < 0 || start == end) {
+                throw new MalformedBgzipDataException(String.format("Column %d is missing", column));
+            }
+            long value = 0;
+            for (int i = start; i < end; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new MalformedBgzipDataException(String.format("Column %d is not a number", column));
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+        
+        /**
+         * Parses END in INFO column of VCF, returns -1 if absent
+         */
+        private long infoEnd() {
+            int start = fieldStarts[8];
+            int end = fieldEnds[8];
+            for (int i = start; start >= 0 && i + 4 <= end; i++) {
+                if ((i == start || line[i - 1] == ';') && line[i] == 'E' && line[i + 1] == 'N'
+                        && line[i + 2] == 'D' && line[i + 3] == '=') {
+                    long value = 0;
+                    for (i += 4; i < end && line[i] >= '0' && line[i] <= '9'; i++) {
+                        value = value * 10 + line[i] - '0';
+                    }
+                    return value;
+                }
+            }
+            return -1;
+        }
+        
+        /**
+         * Computes length of reference covered by CIGAR of SAM record
+         */
+        private long cigarLength() {
+            long length = 0;
+            long n = 0;
+            for (int i = fieldStarts[6]; i >= 0 && i < fieldEnds[6]; i++) {
+                byte c = line[i];
+                if (c >= '0' && c <= '9') {
+                    n = n * 10 + c - '0';
+                } else {
+                    if (c == 'M' || c == 'D' || c == 'N' || c == '=' || c == 'X') {
+                        length += n;
+                    }
+                    n = 0;
+                }
+            }
+            return length;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,25 @@
+package com.vivimice.bgzfrandreader;
+
+/**
+ * <p>Decompresses with zlib, borrowing {@link BgzipBlockInflater} from {@link InflaterPool#SHARED} for
+ * each block</p>
+ * 
+ * <p>This class is thread safe.</p>
+ * 
+ * @author vivimice &lt;vivimice@gmail.com&gt;
+ * @see BgzipDecompressor#ZLIB
+ */
+class ZlibDecompressor implements BgzipDecompressor {
+    
+    @Override
+    public void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+            throws MalformedBgzipDataException {
+        BgzipBlockInflater inflater = InflaterPool.SHARED.borrow();
+        try {
+            inflater.inflate(src, srcOff, srcLen, dst, dstOff, dstLen);
+        } finally {
+            InflaterPool.SHARED.release(inflater);
+        }
+    }
+    
+}
@@ -0,0 +1,163 @@
+package com.vivimice.bgzfrandreader.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vivimice.bgzfrandreader.BgzfOutputStream;
+import com.vivimice.bgzfrandreader.BgzipIndex;
+import com.vivimice.bgzfrandreader.RandomAccessBgzFile;
+
+public class BgzfOutputStreamTest {
+    
+    private static byte[] generate() {
+        // compressible text followed by incompressible random bytes
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; out.size() < 1000000; i++) {
+            byte[] line = String.format("line %d\t%d%n", i, i * 31).getBytes();
+            out.write(line, 0, line.length);
+        }
+        byte[] random = RandomUtils.nextBytes(300000);
+        out.write(random, 0, random.length);
+        return out.toByteArray();
+    }
+    
+    private static byte[] gunzip(File file) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream gin = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buf = new byte[16384];
+            int cb;
+            while ((cb = gin.read(buf)) >= 0) {
+                out.write(buf, 0, cb);
+            }
+        }
+        return out.toByteArray();
+    }
+    
+    private static void verify(File file, BgzipIndex index, byte[] expected) throws Exception {
+        Assert.assertArrayEquals(expected, gunzip(file));
+        
+        try (RandomAccessBgzFile scanned = new RandomAccessBgzFile(file);
+                RandomAccessBgzFile indexed = RandomAccessBgzFile.builder(file).index(index).build()) {
+            BgzipIndex scannedIndex = scanned.getIndex();
+            Assert.assertEquals(scannedIndex.getBlockCount(), index.getBlockCount());
+            for (int i = 0; i < index.getBlockCount(); i++) {
+                Assert.assertEquals(scannedIndex.getBlockOffset(i), index.getBlockOffset(i));
+                Assert.assertEquals(scannedIndex.getBlockSize(i), index.getBlockSize(i));
+                Assert.assertEquals(scannedIndex.getInputOffset(i), index.getInputOffset(i));
+            }
+            
+            byte[] actual = new byte[expected.length];
+            Assert.assertEquals(expected.length, indexed.read(actual));
+            Assert.assertArrayEquals(expected, actual);
+        }
+    }
+    
+    @Test
+    public void writeTest() throws Exception {
+        byte[] expected = generate();
+        File file = File.createTempFile("bgzf-write-test", ".bgz");
+        try {
+            BgzipIndex index;
+            try (BgzfOutputStream out = new BgzfOutputStream(file, Deflater.DEFAULT_COMPRESSION, null)) {
+                // mixed single byte and bulk writes, and a flush in the middle
+                out.write(expected[0]);
+                out.write(expected, 1, 99999);
+                out.flush();
+                out.write(expected, 100000, expected.length - 100000);
+                out.finish();
+                index = out.getIndex();
+            }
+            verify(file, index, expected);
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void parallelWriteTest() throws Exception {
+        byte[] expected = generate();
+        File file = File.createTempFile("bgzf-write-test", ".bgz");
+        File indexFile = new File(file.getPath() + ".gzi");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            BgzipIndex index;
+            try (BgzfOutputStream out = new BgzfOutputStream(file, 9, executor)) {
+                for (int off = 0; off < expected.length; off += 7777) {
+                    out.write(expected, off, Math.min(7777, expected.length - off));
+                }
+                out.finish();
+                index = out.getIndex();
+                out.saveIndex(indexFile);
+            }
+            verify(file, index, expected);
+            
+            try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.open(file, indexFile)) {
+                byte[] actual = new byte[expected.length];
+                Assert.assertEquals(expected.length, bgzFile.read(actual));
+                Assert.assertArrayEquals(expected, actual);
+            }
+        } finally {
+            executor.shutdown();
+            file.delete();
+            indexFile.delete();
+        }
+    }
+    
+    @Test
+    public void failedCloseTest() throws Exception {
+        final boolean[] failing = { false };
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                if (failing[0]) {
+                    throw new IOException("disk full");
+                }
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (failing[0]) {
+                    throw new IOException("disk full");
+                }
+            }
+        };
+        
+        byte[] data = RandomUtils.nextBytes(100000);
+        BgzfOutputStream out = new BgzfOutputStream(sink);
+        out.write(data);
+        failing[0] = true;
+        try {
+            out.close();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("disk full", e.getMessage());
+        }
+        
+        // stream is unusable after close() fails to finish
+        try {
+            out.write(data);
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("Stream closed", e.getMessage());
+        }
+        try {
+            out.finish();
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("Stream closed", e.getMessage());
+        }
+        out.close();
+    }
+    
+}
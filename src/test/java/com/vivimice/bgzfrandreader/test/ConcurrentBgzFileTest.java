@@ -0,0 +1,364 @@
+package com.vivimice.bgzfrandreader.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vivimice.bgzfrandreader.BgzipDecompressor;
+import com.vivimice.bgzfrandreader.BgzipIndex;
+import com.vivimice.bgzfrandreader.ConcurrentBgzFile;
+import com.vivimice.bgzfrandreader.CrcVerification;
+import com.vivimice.bgzfrandreader.MalformedBgzipDataException;
+import com.vivimice.bgzfrandreader.RandomAccessBgzFile;
+
+public class ConcurrentBgzFileTest {
+    
+    private static final File TEST_FILE = new File(
+            ConcurrentBgzFileTest.class.getClassLoader().getResource("test.txt.bgz").getFile());
+    
+    private static byte[] readExpected() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPInputStream gin = new GZIPInputStream(new FileInputStream(TEST_FILE))) {
+            byte[] buf = new byte[16384];
+            while (true) {
+                int cb = gin.read(buf);
+                if (cb >= 0) {
+                    out.write(buf, 0, cb);
+                } else {
+                    break;
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+    
+    @Test
+    public void concurrentAccessTest() throws Exception {
+        final byte[] expected = readExpected();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (RandomAccessBgzFile indexed = new RandomAccessBgzFile(TEST_FILE);
+                final ConcurrentBgzFile bgzFile = new ConcurrentBgzFile(TEST_FILE, indexed.getIndex())) {
+            Assert.assertEquals(expected.length, bgzFile.inputLength());
+            
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        byte[] actual = new byte[expected.length];
+                        for (int n = 0; n < 200; n++) {
+                            int off = RandomUtils.nextInt(0, expected.length);
+                            int len = RandomUtils.nextInt(0, Math.min(expected.length - off, 200000));
+                            int cb = bgzFile.read(off, actual, off, len);
+                            Assert.assertEquals(len, cb);
+                            for (int i = off; i < off + len; i++) {
+                                if (expected[i] != actual[i]) {
+                                    Assert.fail(String.format("CONCURRENT Test fail at off=%d, len=%d", off, len));
+                                }
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            
+            Assert.assertEquals(-1, bgzFile.read(expected.length, new byte[1], 0, 1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void sharedInflaterTest() throws Exception {
+        final byte[] expected = readExpected();
+        
+        // more readers than pooled decompressors, so some of them run on temporary ones
+        int threads = 4 * Runtime.getRuntime().availableProcessors() + 1;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (RandomAccessBgzFile indexed = new RandomAccessBgzFile(TEST_FILE)) {
+            final BgzipIndex index = indexed.getIndex();
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        byte[] actual = new byte[expected.length];
+                        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE, index)) {
+                            for (int n = 0; n < 50; n++) {
+                                int off = RandomUtils.nextInt(0, expected.length);
+                                int len = RandomUtils.nextInt(0, Math.min(expected.length - off, 200000));
+                                bgzFile.seek(off);
+                                Assert.assertEquals(len, bgzFile.read(actual, off, len));
+                                Assert.assertArrayEquals(Arrays.copyOfRange(expected, off, off + len), 
+                                        Arrays.copyOfRange(actual, off, off + len));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void decompressorTest() throws Exception {
+        byte[] expected = readExpected();
+        
+        // reserved block type (BTYPE = 11) in deflate data of a block in the middle
+        BgzipIndex index;
+        try (RandomAccessBgzFile file = new RandomAccessBgzFile(TEST_FILE)) {
+            index = file.getIndex();
+        }
+        int corruptBlock = index.getBlockCount() / 2;
+        byte[] data = Files.readAllBytes(TEST_FILE.toPath());
+        data[(int) index.getBlockOffset(corruptBlock) + 18] |= 0x07;
+        File corruptFile = File.createTempFile("corrupt", ".bgz");
+        corruptFile.deleteOnExit();
+        Files.write(corruptFile.toPath(), data);
+        
+        long corruptPos = index.getInputOffset(corruptBlock);
+        byte[] actual = new byte[expected.length];
+        for (BgzipDecompressor decompressor : Arrays.asList(BgzipDecompressor.ZLIB, BgzipDecompressor.PURE_JAVA)) {
+            try (RandomAccessBgzFile sequential = RandomAccessBgzFile.builder(TEST_FILE).index(index)
+                        .decompressor(decompressor).crcVerification(CrcVerification.ALWAYS).build();
+                    ConcurrentBgzFile concurrent = ConcurrentBgzFile.builder(TEST_FILE).index(index)
+                        .decompressor(decompressor).crcVerification(CrcVerification.ALWAYS).build()) {
+                Assert.assertEquals(expected.length, sequential.read(actual));
+                Assert.assertArrayEquals(expected, actual);
+                
+                Arrays.fill(actual, (byte) 0);
+                Assert.assertEquals(expected.length, concurrent.read(0, actual, 0, actual.length));
+                Assert.assertArrayEquals(expected, actual);
+                
+                for (int n = 0; n < 50; n++) {
+                    int off = RandomUtils.nextInt(0, expected.length);
+                    int len = RandomUtils.nextInt(0, Math.min(expected.length - off, 200000));
+                    sequential.seek(off);
+                    Assert.assertEquals(len, sequential.read(actual, 0, len));
+                    Assert.assertArrayEquals(Arrays.copyOfRange(expected, off, off + len), Arrays.copyOf(actual, len));
+                }
+            }
+            
+            try (RandomAccessBgzFile sequential = RandomAccessBgzFile.builder(corruptFile).index(index).decompressor(decompressor).build();
+                    ConcurrentBgzFile concurrent = ConcurrentBgzFile.builder(corruptFile).index(index).decompressor(decompressor).build()) {
+                Assert.assertEquals(100, concurrent.read(0, actual, 0, 100));
+                sequential.seek(corruptPos);
+                try {
+                    sequential.read(actual, 0, 100);
+                    Assert.fail();
+                } catch (MalformedBgzipDataException e) {
+                    // expected
+                }
+                try {
+                    concurrent.read(corruptPos, actual, 0, 100);
+                    Assert.fail();
+                } catch (MalformedBgzipDataException e) {
+                    // expected
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void asyncReadTest() throws Exception {
+        final byte[] expected = readExpected();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (ConcurrentBgzFile bgzFile = ConcurrentBgzFile.builder(TEST_FILE)
+                .asyncExecutor(executor).maxCoalescedRead(100000).build()) {
+            // many outstanding reads
+            List<Future<ByteBuffer>> futures = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            for (int n = 0; n < 100; n++) {
+                int pos = RandomUtils.nextInt(0, expected.length);
+                int len = RandomUtils.nextInt(0, 400000);
+                positions.add(pos);
+                futures.add(bgzFile.readAsync(pos, len));
+            }
+            for (int n = 0; n < futures.size(); n++) {
+                ByteBuffer bb = futures.get(n).get();
+                int pos = positions.get(n);
+                Assert.assertTrue(bb.remaining() <= expected.length - pos);
+                byte[] actual = new byte[bb.remaining()];
+                bb.get(actual);
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + actual.length), actual);
+            }
+            
+            ByteBuffer bb = bgzFile.readAsync(0, Integer.MAX_VALUE).get();
+            Assert.assertArrayEquals(expected, bb.array());
+            Assert.assertEquals(0, bgzFile.readAsync(expected.length, 100).get().remaining());
+            
+            // completion handler
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<Object> outcome = new AtomicReference<>();
+            bgzFile.readAsync(100, 200000, "attachment", new CompletionHandler<ByteBuffer, String>() {
+                @Override
+                public void completed(ByteBuffer result, String attachment) {
+                    outcome.set("attachment".equals(attachment) ? result : attachment);
+                    latch.countDown();
+                }
+                
+                @Override
+                public void failed(Throwable e, String attachment) {
+                    outcome.set(e);
+                    latch.countDown();
+                }
+            });
+            latch.await();
+            Assert.assertArrayEquals(Arrays.copyOfRange(expected, 100, 200100), ((ByteBuffer) outcome.get()).array());
+            
+            bgzFile.close();
+            try {
+                bgzFile.readAsync(0, 100).get();
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof ClosedChannelException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        
+        // not supported without file
+        try (FileChannel channel = new FileInputStream(TEST_FILE).getChannel();
+                ConcurrentBgzFile bgzFile = new ConcurrentBgzFile(channel, null)) {
+            bgzFile.readAsync(0, 100);
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void parallelReadTest() throws Exception {
+        byte[] expected = readExpected();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (ConcurrentBgzFile bgzFile = new ConcurrentBgzFile(TEST_FILE)) {
+            byte[] actual = new byte[expected.length + 10];
+            Assert.assertEquals(expected.length, bgzFile.read(0, actual, 10, actual.length - 10, executor));
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(actual, 10, actual.length));
+            
+            for (int n = 0; n < 20; n++) {
+                int off = RandomUtils.nextInt(0, expected.length);
+                int len = RandomUtils.nextInt(0, expected.length - off);
+                Arrays.fill(actual, (byte) 0);
+                Assert.assertEquals(len, bgzFile.read(off, actual, 0, len, executor));
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, off, off + len), Arrays.copyOf(actual, len));
+            }
+            
+            Assert.assertEquals(-1, bgzFile.read(expected.length, actual, 0, 1, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void memoryMappedTest() throws Exception {
+        byte[] expected = readExpected();
+        
+        try (RandomAccessBgzFile sequential = RandomAccessBgzFile.builder(TEST_FILE).memoryMapped(true).build();
+                ConcurrentBgzFile concurrent = ConcurrentBgzFile.builder(TEST_FILE)
+                        .index(sequential.getIndex()).memoryMapped(true).build()) {
+            byte[] actual = new byte[expected.length];
+            for (int n = 0; n < 200; n++) {
+                int off = RandomUtils.nextInt(0, expected.length);
+                int len = RandomUtils.nextInt(0, Math.min(expected.length - off, 200000));
+                sequential.seek(off);
+                Assert.assertEquals(len, sequential.read(actual, off, len));
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, off, off + len), Arrays.copyOfRange(actual, off, off + len));
+                
+                Arrays.fill(actual, off, off + len, (byte) 0);
+                Assert.assertEquals(len, concurrent.read(off, actual, off, len));
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, off, off + len), Arrays.copyOfRange(actual, off, off + len));
+                
+                ByteBuffer direct = ByteBuffer.allocateDirect(len);
+                Assert.assertEquals(len, concurrent.read(off, direct));
+                ((Buffer) direct).flip();
+                Assert.assertEquals(ByteBuffer.wrap(expected, off, len), direct);
+            }
+        }
+    }
+    
+    @Test
+    public void crcVerificationTest() throws Exception {
+        byte[] expected = readExpected();
+        
+        // corrupt CRC32 in trailer of a block in the middle, its data still inflates
+        BgzipIndex index;
+        try (RandomAccessBgzFile file = new RandomAccessBgzFile(TEST_FILE)) {
+            index = file.getIndex();
+        }
+        int corruptBlock = index.getBlockCount() / 2;
+        byte[] data = Files.readAllBytes(TEST_FILE.toPath());
+        data[(int) (index.getBlockOffset(corruptBlock) + index.getBlockSize(corruptBlock) - 8)] ^= 0x5a;
+        File corruptFile = File.createTempFile("corrupt", ".bgz");
+        corruptFile.deleteOnExit();
+        Files.write(corruptFile.toPath(), data);
+        
+        long corruptPos = index.getInputOffset(corruptBlock);
+        byte[] actual = new byte[expected.length];
+        for (CrcVerification mode : CrcVerification.values()) {
+            try (RandomAccessBgzFile sequential = RandomAccessBgzFile.builder(TEST_FILE).index(index).crcVerification(mode).build();
+                    ConcurrentBgzFile concurrent = ConcurrentBgzFile.builder(TEST_FILE).index(index).crcVerification(mode).build()) {
+                for (int n = 0; n < 2; n++) {
+                    sequential.seek(0);
+                    Assert.assertEquals(expected.length, sequential.read(actual));
+                    Assert.assertArrayEquals(expected, actual);
+                    
+                    Arrays.fill(actual, (byte) 0);
+                    Assert.assertEquals(expected.length, concurrent.read(0, actual, 0, actual.length));
+                    Assert.assertArrayEquals(expected, actual);
+                }
+            }
+            
+            try (RandomAccessBgzFile sequential = RandomAccessBgzFile.builder(corruptFile).index(index).crcVerification(mode).build();
+                    ConcurrentBgzFile concurrent = ConcurrentBgzFile.builder(corruptFile).index(index).crcVerification(mode).build()) {
+                Assert.assertEquals(100, concurrent.read(0, actual, 0, 100));
+                sequential.seek(corruptPos);
+                try {
+                    Assert.assertEquals(100, sequential.read(actual, 0, 100));
+                    Assert.assertEquals(CrcVerification.OFF, mode);
+                } catch (MalformedBgzipDataException e) {
+                    Assert.assertTrue(mode != CrcVerification.OFF);
+                }
+                try {
+                    Assert.assertEquals(100, concurrent.read(corruptPos, actual, 0, 100));
+                    Assert.assertEquals(CrcVerification.OFF, mode);
+                } catch (MalformedBgzipDataException e) {
+                    Assert.assertTrue(mode != CrcVerification.OFF);
+                }
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,106 @@
+package com.vivimice.bgzfrandreader.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vivimice.bgzfrandreader.IndexedFastaReader;
+import com.vivimice.bgzfrandreader.RandomAccessBgzFile;
+
+public class IndexedFastaReaderTest {
+    
+    private static final File TEST_FILE = new File(
+            IndexedFastaReaderTest.class.getClassLoader().getResource("test.fa.gz").getFile());
+    
+    private static Map<String, String> readAll() throws Exception {
+        Map<String, StringBuilder> builders = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(TEST_FILE))))) {
+            StringBuilder sb = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(">")) {
+                    sb = new StringBuilder();
+                    builders.put(line.substring(1).split(" ")[0], sb);
+                } else {
+                    sb.append(line.trim());
+                }
+            }
+        }
+        
+        Map<String, String> sequences = new LinkedHashMap<>();
+        for (Map.Entry<String, StringBuilder> entry : builders.entrySet()) {
+            sequences.put(entry.getKey(), entry.getValue().toString());
+        }
+        return sequences;
+    }
+    
+    @Test
+    public void fetchTest() throws Exception {
+        Map<String, String> sequences = readAll();
+        File faiFile = new File(TEST_FILE.getPath() + ".fai");
+        try (IndexedFastaReader reader = new IndexedFastaReader(new RandomAccessBgzFile(TEST_FILE), faiFile)) {
+            Assert.assertEquals(new ArrayList<>(sequences.keySet()), reader.getSequenceNames());
+            Assert.assertEquals(-1, reader.getSequenceLength("chr3"));
+            
+            byte[] buf = new byte[4096];
+            for (int n = 0; n < 1000; n++) {
+                String name = reader.getSequenceNames().get(RandomUtils.nextInt(0, 3));
+                String sequence = sequences.get(name);
+                Assert.assertEquals(sequence.length(), reader.getSequenceLength(name));
+                
+                int beg = RandomUtils.nextInt(0, sequence.length());
+                int end = beg + RandomUtils.nextInt(0, n % 10 == 0 ? 100000 : 300);
+                String expected = sequence.substring(beg, Math.min(end, sequence.length()));
+                Assert.assertEquals(expected, new String(reader.fetch(name, beg, end), "US-ASCII"));
+                
+                int len = Math.min(end - beg, buf.length - 10);
+                int read = reader.fetch(name, beg, buf, 10, len);
+                Assert.assertEquals(Math.min(len, sequence.length() - beg), read);
+                Assert.assertEquals(expected.substring(0, read), new String(buf, 10, read, "US-ASCII"));
+            }
+            
+            Assert.assertEquals(sequences.get("chrM"), reader.fetch("chrM"));
+            Assert.assertEquals(sequences.get("chr1").substring(9999, 20000), reader.fetch("chr1:10,000-20,000"));
+            Assert.assertEquals(sequences.get("chr2").substring(99999), reader.fetch("chr2:100000"));
+            Assert.assertEquals(sequences.get("chr2").substring(60, 61), reader.fetch("chr2:61-61"));
+            Assert.assertEquals("", reader.fetch("chr1:300000-300010"));
+        }
+    }
+    
+    @Test
+    public void largeRegionTest() throws Exception {
+        // index claims a sequence longer than an array can hold
+        File faiFile = File.createTempFile("test", ".fai");
+        faiFile.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(faiFile)) {
+            out.write("chr1\t3000000000\t20\t60\t61\n".getBytes("US-ASCII"));
+        }
+        
+        try (IndexedFastaReader reader = new IndexedFastaReader(new RandomAccessBgzFile(TEST_FILE), faiFile)) {
+            try {
+                reader.fetch("chr1");
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().contains("chr1:1-3000000000"));
+            }
+            try {
+                reader.fetch("chr1", 100, 2500000000L);
+                Assert.fail();
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage().contains("chr1:101-2500000000"));
+            }
+            Assert.assertEquals(readAll().get("chr1").substring(100, 200), new String(reader.fetch("chr1", 100, 200), "US-ASCII"));
+        }
+    }
+    
+}
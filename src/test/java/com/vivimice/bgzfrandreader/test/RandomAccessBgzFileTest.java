@@ -3,12 +3,31 @@ package com.vivimice.bgzfrandreader.test;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.lang3.RandomUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.vivimice.bgzfrandreader.BgzSeekableByteChannel;
+import com.vivimice.bgzfrandreader.BgzfOutputStream;
+import com.vivimice.bgzfrandreader.BgzipIndex;
+import com.vivimice.bgzfrandreader.BgzipMetricsListener;
+import com.vivimice.bgzfrandreader.LruBgzipBlockCache;
 import com.vivimice.bgzfrandreader.RandomAccessBgzFile;
 
 public class RandomAccessBgzFileTest {
@@ -112,4 +131,690 @@ public class RandomAccessBgzFileTest {
         }
     }
     
+    @Test
+    public void gziIndexTest() throws Exception {
+        byte[] expected = new byte[65536 * 3];
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            bgzFile.seek(100000);
+            Assert.assertEquals(expected.length, bgzFile.read(expected));
+        }
+        
+        File indexFile = File.createTempFile("test", ".gzi");
+        indexFile.deleteOnExit();
+        
+        // stale index, falls back to scanning and overwrites it
+        try (FileOutputStream out = new FileOutputStream(indexFile)) {
+            out.write(new byte[] { 1, 2, 3 });
+        }
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.open(TEST_FILE, indexFile)) {
+            byte[] actual = new byte[expected.length];
+            bgzFile.seek(100000);
+            Assert.assertEquals(actual.length, bgzFile.read(actual));
+            Assert.assertArrayEquals(expected, actual);
+        }
+        Assert.assertEquals(8, indexFile.length() % 16);
+        Assert.assertTrue(indexFile.length() > 8);
+        
+        // load from index
+        long lastModified = indexFile.lastModified();
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.open(TEST_FILE, indexFile)) {
+            byte[] actual = new byte[expected.length];
+            bgzFile.seek(100000);
+            Assert.assertEquals(actual.length, bgzFile.read(actual));
+            Assert.assertArrayEquals(expected, actual);
+            try (RandomAccessBgzFile scanned = new RandomAccessBgzFile(TEST_FILE)) {
+                Assert.assertEquals(scanned.inputLength(), bgzFile.inputLength());
+            }
+        }
+        Assert.assertEquals(lastModified, indexFile.lastModified());
+    }
+    
+    @Test
+    public void gziExtraSubfieldTest() throws Exception {
+        // blocks with an extra subfield besides BC, as written by tools other than bgzip
+        byte[] expected = RandomUtils.nextBytes(150000);
+        File file = File.createTempFile("test", ".bgz");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            for (int off = 0; off < expected.length; off += 60000) {
+                writeBlock(out, expected, off, Math.min(60000, expected.length - off));
+            }
+            out.write(new byte[] {
+                0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+                0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+            });
+        }
+        
+        File indexFile = File.createTempFile("test", ".gzi");
+        indexFile.deleteOnExit();
+        Assert.assertTrue(indexFile.delete());
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.open(file, indexFile)) {
+            Assert.assertEquals(3, bgzFile.getIndex().getBlockCount());
+        }
+        Assert.assertTrue(indexFile.isFile());
+        
+        // valid index is loaded, not rewritten
+        long lastModified = file.lastModified() / 1000 * 1000 + 10000;
+        Assert.assertTrue(indexFile.setLastModified(lastModified));
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.open(file, indexFile)) {
+            byte[] actual = new byte[expected.length];
+            Assert.assertEquals(actual.length, bgzFile.read(actual));
+            Assert.assertArrayEquals(expected, actual);
+        }
+        Assert.assertEquals(lastModified, indexFile.lastModified());
+    }
+    
+    @Test
+    public void gziValidationTest() throws Exception {
+        byte[] expected = RandomUtils.nextBytes(120000);
+        File file = File.createTempFile("test", ".bgz");
+        file.deleteOnExit();
+        long[] blockOffsets = new long[3];
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            writeBlock(out, expected, 0, 60000);
+            // empty block in the middle, scanning stops at it
+            blockOffsets[1] = out.getChannel().position();
+            writeBlock(out, expected, 60000, 0);
+            blockOffsets[2] = out.getChannel().position();
+            writeBlock(out, expected, 60000, 60000);
+            out.write(new byte[] {
+                0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+                0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+            });
+        }
+        
+        BgzipIndex scanned;
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(file)) {
+            scanned = bgzFile.getIndex();
+        }
+        Assert.assertEquals(1, scanned.getBlockCount());
+        
+        // index loaded from .gzi agrees with scanning
+        File indexFile = File.createTempFile("test", ".gzi");
+        indexFile.deleteOnExit();
+        writeGzi(indexFile, blockOffsets[1], 60000, blockOffsets[2], 60000);
+        long lastModified = file.lastModified() / 1000 * 1000 + 10000;
+        Assert.assertTrue(indexFile.setLastModified(lastModified));
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.open(file, indexFile)) {
+            Assert.assertEquals(scanned.getBlockCount(), bgzFile.getIndex().getBlockCount());
+            Assert.assertEquals(scanned.getInputLength(), bgzFile.getIndex().getInputLength());
+        }
+        Assert.assertEquals(lastModified, indexFile.lastModified());
+        
+        // interior span larger than a block, falls back to scanning and overwrites it
+        writeGzi(indexFile, blockOffsets[1], 100000, blockOffsets[2], 100000);
+        Assert.assertTrue(indexFile.setLastModified(lastModified));
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.open(file, indexFile)) {
+            Assert.assertEquals(scanned.getBlockCount(), bgzFile.getIndex().getBlockCount());
+            Assert.assertEquals(scanned.getInputLength(), bgzFile.getIndex().getInputLength());
+        }
+        Assert.assertTrue(lastModified != indexFile.lastModified());
+    }
+    
+    /**
+     * Writes .gzi index of blocks after the first one, given as pairs of compressed and uncompressed offsets
+     */
+    private static void writeGzi(File indexFile, long... offsets) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate(8 + offsets.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putLong(offsets.length / 2);
+        for (long offset : offsets) {
+            bb.putLong(offset);
+        }
+        try (FileOutputStream out = new FileOutputStream(indexFile)) {
+            out.write(bb.array());
+        }
+    }
+    
+    /**
+     * Writes a BGZF block whose extra field holds a 'XY' subfield before BC subfield
+     */
+    private static void writeBlock(FileOutputStream out, byte[] b, int off, int len) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(b, off, len);
+        deflater.finish();
+        byte[] compressed = new byte[65536];
+        int cdataLength = 0;
+        while (!deflater.finished()) {
+            cdataLength += deflater.deflate(compressed, cdataLength, compressed.length - cdataLength);
+        }
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(b, off, len);
+        
+        int xlen = 14;
+        ByteBuffer block = ByteBuffer.allocate(12 + xlen + cdataLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+        block.putInt(0x04088b1f).putInt(0).put((byte) 0).put((byte) 0xff).putShort((short) xlen);
+        block.put((byte) 'X').put((byte) 'Y').putShort((short) 4).putInt(0x12345678);
+        block.put((byte) 'B').put((byte) 'C').putShort((short) 2).putShort((short) (block.capacity() - 1));
+        block.put(compressed, 0, cdataLength).putInt((int) crc.getValue()).putInt(len);
+        out.write(block.array());
+    }
+    
+    @Test
+    public void blockIndexTest() throws Exception {
+        BgzipIndex index = BgzipIndex.builder()
+                .add(0, 100, 10)
+                .add(100, 50, 0)        // empty block
+                .add(150, 100, 20)
+                .add(250, 100, 30)
+                .build();
+        Assert.assertEquals(3, index.getBlockCount());
+        Assert.assertEquals(60, index.getInputLength());
+        Assert.assertEquals(-1, index.indexOf(-1));
+        Assert.assertEquals(0, index.indexOf(0));
+        Assert.assertEquals(0, index.indexOf(9));
+        Assert.assertEquals(1, index.indexOf(10));
+        Assert.assertEquals(1, index.indexOf(29));
+        Assert.assertEquals(2, index.indexOf(30));
+        Assert.assertEquals(2, index.indexOf(59));
+        Assert.assertEquals(-1, index.indexOf(60));
+        Assert.assertEquals(150, index.getBlockOffset(1));
+        Assert.assertEquals(20, index.getInputLength(1));
+        Assert.assertEquals(30, index.getInputOffset(2));
+    }
+    
+    @Test
+    public void virtualOffsetTest() throws Exception {
+        BgzipIndex index = BgzipIndex.builder()
+                .add(0, 100, 10)
+                .add(100, 50, 0)        // empty block
+                .add(150, 200, 30)
+                .build();
+        Assert.assertEquals(5L, index.toVirtualOffset(5));
+        Assert.assertEquals(150L << 16, index.toVirtualOffset(10));
+        Assert.assertEquals(150L << 16 | 29, index.toVirtualOffset(39));
+        Assert.assertEquals(350L << 16, index.toVirtualOffset(40));
+        Assert.assertEquals(10, index.toInputOffset(10));
+        Assert.assertEquals(10, index.toInputOffset(100L << 16));
+        Assert.assertEquals(39, index.toInputOffset(150L << 16 | 29));
+        Assert.assertEquals(40, index.toInputOffset(350L << 16));
+        try {
+            index.toInputOffset(50L << 16);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        
+        byte[] expected = new byte[1000];
+        byte[] actual = new byte[expected.length];
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            for (int n = 0; n < 100; n++) {
+                long pos = RandomUtils.nextLong(0, bgzFile.inputLength() - expected.length);
+                bgzFile.seek(pos);
+                long virtualOffset = bgzFile.getVirtualPosition();
+                Assert.assertEquals(expected.length, bgzFile.read(expected));
+                
+                bgzFile.seek(0);
+                bgzFile.seekVirtual(virtualOffset);
+                Assert.assertEquals(pos, bgzFile.getPosition());
+                Assert.assertEquals(actual.length, bgzFile.read(actual));
+                Assert.assertArrayEquals(expected, actual);
+            }
+        }
+    }
+    
+    @Test
+    public void blockCacheTest() throws Exception {
+        LruBgzipBlockCache cache = new LruBgzipBlockCache(4 * 65536);
+        byte[] expected = new byte[65536 * 3];
+        byte[] actual = new byte[expected.length];
+        try (RandomAccessBgzFile bgzFile1 = new RandomAccessBgzFile(TEST_FILE);
+                RandomAccessBgzFile bgzFile2 = new RandomAccessBgzFile(TEST_FILE)) {
+            bgzFile1.setBlockCache(cache);
+            bgzFile2.setBlockCache(cache);
+            
+            bgzFile1.seek(100000);
+            Assert.assertEquals(expected.length, bgzFile1.read(expected));
+            Assert.assertEquals(0, cache.getHitCount());
+            Assert.assertTrue(cache.getBlockCount() >= 3);
+            
+            bgzFile2.seek(100000);
+            Assert.assertEquals(actual.length, bgzFile2.read(actual));
+            Assert.assertArrayEquals(expected, actual);
+            Assert.assertEquals(cache.getMissCount(), cache.getHitCount());
+            
+            // evicts least recently used blocks
+            bgzFile2.seek(1000000);
+            Assert.assertEquals(actual.length, bgzFile2.read(actual));
+            Assert.assertTrue(cache.getSize() <= cache.getCapacity());
+            Assert.assertTrue(cache.getBlockCount() < 8);
+        }
+    }
+    
+    @Test
+    public void directInflateTest() throws Exception {
+        byte[] expected;
+        BgzipIndex index;
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            index = bgzFile.getIndex();
+            expected = new byte[(int) bgzFile.inputLength()];
+            Assert.assertEquals(expected.length, bgzFile.read(expected));
+        }
+        
+        // blocks in the middle are inflated into the array, guarded bytes around the window are untouched
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE, index)) {
+            int pos = (int) index.getInputOffset(3) - 10;
+            int len = (int) index.getInputOffset(8) + 10 - pos;
+            byte[] actual = new byte[len + 20];
+            Arrays.fill(actual, (byte) 0x5a);
+            bgzFile.seek(pos);
+            Assert.assertEquals(len, bgzFile.read(actual, 10, len));
+            Assert.assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + len), Arrays.copyOfRange(actual, 10, 10 + len));
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(0x5a, actual[i]);
+                Assert.assertEquals(0x5a, actual[actual.length - 1 - i]);
+            }
+            
+            // the first and the last blocks are still kept around the read
+            for (long p : new long[] { pos + len - 5, pos }) {
+                bgzFile.seek(p);
+                Assert.assertEquals(5, bgzFile.read(actual, 0, 5));
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, (int) p, (int) p + 5), Arrays.copyOf(actual, 5));
+            }
+        }
+    }
+    
+    @Test
+    public void coalescedReadTest() throws Exception {
+        byte[] expected;
+        BgzipIndex index;
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            index = bgzFile.getIndex();
+            expected = new byte[(int) bgzFile.inputLength()];
+            Assert.assertEquals(expected.length, bgzFile.read(expected));
+        }
+        
+        byte[] actual = new byte[expected.length];
+        int[] reads = new int[3];
+        int[] maxSizes = { 0, 200000, Integer.MAX_VALUE };
+        for (int n = 0; n < maxSizes.length; n++) {
+            CountingChannel channel = new CountingChannel(new FileInputStream(TEST_FILE).getChannel());
+            try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(channel, index)) {
+                bgzFile.setMaxCoalescedRead(maxSizes[n]);
+                Arrays.fill(actual, (byte) 0);
+                Assert.assertEquals(expected.length, bgzFile.read(actual));
+                Assert.assertArrayEquals(expected, actual);
+                reads[n] = channel.reads;
+                
+                for (int k = 0; k < 20; k++) {
+                    int pos = RandomUtils.nextInt(0, expected.length);
+                    int len = RandomUtils.nextInt(0, Math.min(expected.length - pos, 300000));
+                    bgzFile.seek(pos);
+                    Assert.assertEquals(len, bgzFile.read(actual, pos, len));
+                    Assert.assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + len), Arrays.copyOfRange(actual, pos, pos + len));
+                }
+            } finally {
+                channel.close();
+            }
+        }
+        
+        // one read per block without coalescing, a single read of the whole file without limit
+        Assert.assertEquals(index.getBlockCount(), reads[0]);
+        Assert.assertTrue(reads[1] < reads[0] && reads[1] > 1);
+        Assert.assertEquals(1, reads[2]);
+    }
+    
+    @Test
+    public void byteBufferTest() throws Exception {
+        byte[] expected = new byte[65536 * 3];
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            bgzFile.seek(100000);
+            Assert.assertEquals(expected.length, bgzFile.read(expected));
+            
+            for (ByteBuffer bb : new ByteBuffer[] { ByteBuffer.allocate(expected.length + 10), 
+                    ByteBuffer.allocateDirect(expected.length + 10) }) {
+                // crosses the head cache, several blocks and tail cache
+                bgzFile.seek(100000);
+                ((Buffer) bb).position(10);
+                Assert.assertEquals(1000, bgzFile.read((ByteBuffer) bb.slice().limit(1000)));
+                bgzFile.seek(100000);
+                Assert.assertEquals(expected.length, bgzFile.read(bb));
+                Assert.assertFalse(bb.hasRemaining());
+                
+                byte[] actual = new byte[expected.length];
+                ((Buffer) bb).position(10);
+                bb.get(actual);
+                Assert.assertArrayEquals(expected, actual);
+            }
+            
+            bgzFile.seek(bgzFile.inputLength());
+            Assert.assertEquals(-1, bgzFile.read(ByteBuffer.allocateDirect(1)));
+        }
+    }
+    
+    @Test
+    public void readaheadTest() throws Exception {
+        byte[] expected;
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            expected = new byte[(int) bgzFile.inputLength()];
+            Assert.assertEquals(expected.length, bgzFile.read(expected));
+        }
+        
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.builder(TEST_FILE).readahead(4).build()) {
+            // full scan
+            byte[] actual = new byte[expected.length];
+            int off = 0;
+            while (off < actual.length) {
+                int cb = bgzFile.read(actual, off, Math.min(actual.length - off, 10000));
+                Assert.assertTrue(cb > 0);
+                off += cb;
+            }
+            Assert.assertEquals(-1, bgzFile.read(actual));
+            Assert.assertArrayEquals(expected, actual);
+            
+            // leaves and re-enters sequential runs
+            for (int n = 0; n < 50; n++) {
+                int pos = RandomUtils.nextInt(0, expected.length);
+                int len = RandomUtils.nextInt(0, Math.min(expected.length - pos, 300000));
+                bgzFile.seek(pos);
+                for (int i = pos; i < pos + len; i += 5000) {
+                    int cb = Math.min(5000, pos + len - i);
+                    Assert.assertEquals(cb, bgzFile.read(actual, i, cb));
+                }
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + len), Arrays.copyOfRange(actual, pos, pos + len));
+            }
+        }
+    }
+    
+    @Test(timeout = 60000)
+    public void readaheadErrorTest() throws Exception {
+        byte[] expected;
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            expected = new byte[(int) bgzFile.inputLength()];
+            Assert.assertEquals(expected.length, bgzFile.read(expected));
+        }
+        
+        // reader falls back to reading by itself on errors in readahead thread
+        BgzipMetricsListener listener = new BgzipMetricsListener() {
+            @Override
+            public void indexBuilt(int blockCount, long nanos) {
+            }
+            
+            @Override
+            public void blockDecompressed(long blockOffset, int blockSize, int inputLength, long readNanos, long inflateNanos) {
+                if (Thread.currentThread().getName().equals("bgzf-readahead")) {
+                    throw new LinkageError("thrown by listener");
+                }
+            }
+            
+            @Override
+            public void cacheHit(CacheSource source, int bytes) {
+            }
+        };
+        
+        // errors escaping readahead threads are recorded instead of being printed
+        final Queue<Throwable> uncaught = new ConcurrentLinkedQueue<>();
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                uncaught.add(e);
+            }
+        });
+        try {
+            try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.builder(TEST_FILE).readahead(4).metricsListener(listener).build()) {
+                byte[] actual = new byte[expected.length];
+                int off = 0;
+                while (off < actual.length) {
+                    int cb = bgzFile.read(actual, off, Math.min(actual.length - off, 10000));
+                    Assert.assertTrue(cb > 0);
+                    off += cb;
+                }
+                Assert.assertArrayEquals(expected, actual);
+            }
+            
+            // readahead threads hand their errors to the handler before they terminate
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("bgzf-readahead")) {
+                    thread.join();
+                }
+            }
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+        }
+        Assert.assertFalse(uncaught.isEmpty());
+        for (Throwable e : uncaught) {
+            Assert.assertTrue(e instanceof LinkageError);
+            Assert.assertEquals("thrown by listener", e.getMessage());
+        }
+    }
+    
+    @Test
+    public void channelTest() throws Exception {
+        byte[] expected = new byte[65536 * 3];
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            bgzFile.seek(100000);
+            Assert.assertEquals(expected.length, bgzFile.read(expected));
+        }
+        
+        SeekableByteChannel channel = new BgzSeekableByteChannel(new RandomAccessBgzFile(TEST_FILE));
+        try {
+            ByteBuffer bb = ByteBuffer.allocate(expected.length);
+            channel.position(100000);
+            while (bb.hasRemaining()) {
+                Assert.assertTrue(channel.read(bb) > 0);
+            }
+            Assert.assertArrayEquals(expected, bb.array());
+            Assert.assertEquals(100000 + expected.length, channel.position());
+            
+            channel.position(channel.size() + 1);
+            ((Buffer) bb).clear();
+            Assert.assertEquals(-1, channel.read(bb));
+            
+            try {
+                channel.write(bb);
+                Assert.fail();
+            } catch (NonWritableChannelException e) {
+                // expected
+            }
+        } finally {
+            channel.close();
+        }
+        Assert.assertFalse(channel.isOpen());
+    }
+    
+    @Test
+    public void lazyIndexTest() throws Exception {
+        byte[] expected;
+        BgzipIndex index;
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            index = bgzFile.getIndex();
+            expected = new byte[(int) bgzFile.inputLength()];
+            Assert.assertEquals(expected.length, bgzFile.read(expected));
+        }
+        
+        byte[] actual = new byte[expected.length];
+        
+        // peek at header, then read sequentially with readahead
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.builder(TEST_FILE).lazyIndex(true).readahead(4).build()) {
+            Assert.assertEquals(100, bgzFile.read(actual, 0, 100));
+            Assert.assertArrayEquals(Arrays.copyOf(expected, 100), Arrays.copyOf(actual, 100));
+            int off = 100;
+            while (off < actual.length) {
+                int cb = bgzFile.read(actual, off, Math.min(actual.length - off, 10000));
+                Assert.assertTrue(cb > 0);
+                off += cb;
+            }
+            Assert.assertEquals(-1, bgzFile.read(actual));
+            Assert.assertArrayEquals(expected, actual);
+        }
+        
+        // random seeks by position and virtual offset extend index on demand
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.builder(TEST_FILE).lazyIndex(true).build()) {
+            for (int n = 0; n < 100; n++) {
+                int pos = RandomUtils.nextInt(0, expected.length);
+                int len = RandomUtils.nextInt(0, Math.min(expected.length - pos, 100000));
+                if (n % 2 == 0) {
+                    bgzFile.seek(pos);
+                } else {
+                    bgzFile.seekVirtual(index.toVirtualOffset(pos));
+                }
+                Assert.assertEquals(pos, bgzFile.getPosition());
+                Assert.assertEquals(len, bgzFile.read(actual, pos, len));
+                Assert.assertArrayEquals(Arrays.copyOfRange(expected, pos, pos + len), Arrays.copyOfRange(actual, pos, pos + len));
+            }
+            
+            Assert.assertEquals(expected.length, bgzFile.inputLength());
+            Assert.assertEquals(index.getBlockCount(), bgzFile.getIndex().getBlockCount());
+            for (int i = 0; i < index.getBlockCount(); i++) {
+                Assert.assertEquals(index.getBlockOffset(i), bgzFile.getIndex().getBlockOffset(i));
+                Assert.assertEquals(index.getInputOffset(i), bgzFile.getIndex().getInputOffset(i));
+            }
+        }
+        
+        // seeking past the end still fails
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.builder(TEST_FILE).lazyIndex(true).build()) {
+            bgzFile.seek(expected.length);
+            try {
+                bgzFile.seek(expected.length + 1);
+                Assert.fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+    
+    @Test
+    public void parallelScanTest() throws Exception {
+        // Stored blocks keep fake block headers planted in data verbatim, each one followed by another
+        byte[] fake = new byte[1024];
+        ByteBuffer.wrap(fake).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(0x04088b1f).putInt(0).putShort((short) 0xff00).putShort((short) 6)
+                .putShort((short) 0x4342).putShort((short) 2).putShort((short) (fake.length - 1));
+        fake[fake.length - 4] = 100;
+        
+        File file = File.createTempFile("parallel", ".bgz");
+        file.deleteOnExit();
+        try (BgzfOutputStream out = new BgzfOutputStream(file, Deflater.NO_COMPRESSION, null)) {
+            while (file.length() < 20 * 1024 * 1024) {
+                out.write(RandomUtils.nextBytes(RandomUtils.nextInt(0, 4096)));
+                for (int i = RandomUtils.nextInt(0, 4); i > 0; i--) {
+                    out.write(fake);
+                }
+                out.flush();
+            }
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (RandomAccessBgzFile scanned = new RandomAccessBgzFile(file);
+                FileInputStream in = new FileInputStream(file)) {
+            BgzipIndex expected = scanned.getIndex();
+            BgzipIndex actual = BgzipIndex.scan(in.getChannel(), executor);
+            Assert.assertEquals(expected.getBlockCount(), actual.getBlockCount());
+            Assert.assertEquals(expected.getInputLength(), actual.getInputLength());
+            for (int i = 0; i < expected.getBlockCount(); i++) {
+                Assert.assertEquals(expected.getBlockOffset(i), actual.getBlockOffset(i));
+                Assert.assertEquals(expected.getBlockSize(i), actual.getBlockSize(i));
+                Assert.assertEquals(expected.getInputOffset(i), actual.getInputOffset(i));
+            }
+            
+            try (RandomAccessBgzFile built = RandomAccessBgzFile.builder(file).scanExecutor(executor).build()) {
+                Assert.assertEquals(expected.getBlockCount(), built.getIndex().getBlockCount());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void metricsListenerTest() throws Exception {
+        final long[] counters = new long[5];
+        BgzipMetricsListener listener = new BgzipMetricsListener() {
+            @Override
+            public void indexBuilt(int blockCount, long nanos) {
+                counters[0] += blockCount;
+            }
+            
+            @Override
+            public void blockDecompressed(long blockOffset, int blockSize, int inputLength, long readNanos, long inflateNanos) {
+                counters[1]++;
+                counters[2] += inputLength;
+            }
+            
+            @Override
+            public void cacheHit(CacheSource source, int bytes) {
+                counters[source == CacheSource.LOCAL ? 3 : 4] += bytes;
+            }
+        };
+        
+        LruBgzipBlockCache cache = new LruBgzipBlockCache(4 * 65536);
+        byte[] b = new byte[100];
+        try (RandomAccessBgzFile bgzFile = RandomAccessBgzFile.builder(TEST_FILE).metricsListener(listener).build()) {
+            bgzFile.setBlockCache(cache);
+            Assert.assertEquals(bgzFile.getIndex().getBlockCount(), counters[0]);
+            
+            Assert.assertEquals(b.length, bgzFile.read(b));
+            Assert.assertEquals(1, counters[1]);
+            Assert.assertEquals(bgzFile.getIndex().getInputLength(0), counters[2]);
+            
+            bgzFile.seek(0);
+            Assert.assertEquals(b.length, bgzFile.read(b));
+            Assert.assertEquals(1, counters[1]);
+            Assert.assertEquals(b.length, counters[3]);
+        }
+        
+        try (RandomAccessBgzFile bgzFile = new RandomAccessBgzFile(TEST_FILE)) {
+            bgzFile.setBlockCache(cache);
+            bgzFile.setMetricsListener(listener);
+            Assert.assertEquals(b.length, bgzFile.read(b));
+            Assert.assertEquals(1, counters[1]);
+            Assert.assertEquals(bgzFile.getIndex().getInputLength(0), counters[4]);
+        }
+    }
+    
+    /**
+     * Counts reads of underlying channel
+     */
+    private static class CountingChannel implements SeekableByteChannel {
+        final SeekableByteChannel channel;
+        int reads = 0;
+        
+        CountingChannel(SeekableByteChannel channel) {
+            this.channel = channel;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+        
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            reads++;
+            return channel.read(dst);
+        }
+        
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+        
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+        
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+        
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+        
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+    }
+    
 }
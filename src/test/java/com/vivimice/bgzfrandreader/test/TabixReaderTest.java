@@ -0,0 +1,105 @@
+package com.vivimice.bgzfrandreader.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.RandomUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.vivimice.bgzfrandreader.RandomAccessBgzFile;
+import com.vivimice.bgzfrandreader.TabixIndex;
+import com.vivimice.bgzfrandreader.TabixReader;
+
+public class TabixReaderTest {
+    
+    private static final File TEST_FILE = new File(
+            TabixReaderTest.class.getClassLoader().getResource("test.bed.gz").getFile());
+    
+    private static List<String[]> readAll() throws Exception {
+        List<String[]> records = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(TEST_FILE))))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("#")) {
+                    records.add(line.split("\t"));
+                }
+            }
+        }
+        return records;
+    }
+    
+    private static List<String> expected(List<String[]> records, String name, long beg, long end) {
+        List<String> lines = new ArrayList<>();
+        for (String[] record : records) {
+            if (record[0].equals(name) && Long.parseLong(record[1]) < end && Long.parseLong(record[2]) > beg) {
+                lines.add(String.format("%s\t%s\t%s\t%s", (Object[]) record));
+            }
+        }
+        return lines;
+    }
+    
+    private static List<String> actual(TabixReader.Records records) throws Exception {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = records.next()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+    
+    @Test
+    public void queryTest() throws Exception {
+        List<String[]> records = readAll();
+        for (String suffix : new String[] { ".tbi", ".csi" }) {
+            TabixIndex index = TabixIndex.load(new File(TEST_FILE.getPath() + suffix));
+            Assert.assertEquals(3, index.getSequenceNames().size());
+            Assert.assertTrue(index.isZeroBased());
+            
+            try (TabixReader reader = new TabixReader(new RandomAccessBgzFile(TEST_FILE), index)) {
+                for (int n = 0; n < 300; n++) {
+                    String name = index.getSequenceNames().get(RandomUtils.nextInt(0, 3));
+                    long beg = RandomUtils.nextLong(0, 3000000);
+                    long end = beg + RandomUtils.nextLong(1, n % 10 == 0 ? 1000000 : 5000);
+                    Assert.assertEquals(expected(records, name, beg, end), actual(reader.query(name, beg, end)));
+                }
+                
+                Assert.assertEquals(expected(records, "chr2", 0, Long.MAX_VALUE), actual(reader.query("chr2")));
+                Assert.assertEquals(expected(records, "chr1", 9999, 20000), actual(reader.query("chr1:10,000-20,000")));
+                Assert.assertTrue(actual(reader.query("chr3:1-1000")).isEmpty());
+            }
+        }
+    }
+    
+    @Test
+    public void indexFileTest() throws Exception {
+        File dataFile = File.createTempFile("test", ".bed.gz");
+        dataFile.deleteOnExit();
+        Files.copy(TEST_FILE.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File gziFile = new File(dataFile.getPath() + ".gzi");
+        
+        // neither .tbi nor .csi exists
+        try {
+            new TabixReader(dataFile).close();
+            Assert.fail();
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+        
+        // block index of data file is built in memory only
+        List<String[]> records = readAll();
+        try (TabixReader reader = new TabixReader(dataFile, new File(TEST_FILE.getPath() + ".tbi"))) {
+            Assert.assertEquals(expected(records, "chr2", 0, Long.MAX_VALUE), actual(reader.query("chr2")));
+        }
+        Assert.assertFalse(gziFile.exists());
+    }
+    
+}